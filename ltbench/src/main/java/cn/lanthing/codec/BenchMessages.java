@@ -0,0 +1,106 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.codec;
+
+import cn.lanthing.ltproto.LtProto;
+import cn.lanthing.ltproto.common.KeepAliveProto;
+import cn.lanthing.ltproto.server.LoginDeviceProto;
+import cn.lanthing.ltproto.server.NewVersionProto;
+import cn.lanthing.ltproto.signaling.JoinRoomProto;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * 基准测试用的样本消息，大小从空包到几KB不等，覆盖线上最常见的几种。
+ */
+public final class BenchMessages {
+
+    private BenchMessages() {
+    }
+
+    public static LtMessage sample(String name) {
+        return switch (name) {
+            case "KeepAlive" -> new LtMessage(LtProto.KeepAlive.ID, KeepAliveProto.KeepAlive.getDefaultInstance());
+            case "LoginDevice" -> new LtMessage(LtProto.LoginDevice.ID, LoginDeviceProto.LoginDevice.newBuilder()
+                    .setDeviceId(123456789L)
+                    .setCookie("c0ffee00deadbeef1234567890abcdef")
+                    .setVersionMajor(1)
+                    .setVersionMinor(2)
+                    .setVersionPatch(3)
+                    .build());
+            case "JoinRoom" -> new LtMessage(LtProto.JoinRoom.ID, JoinRoomProto.JoinRoom.newBuilder()
+                    .setRoomId("6b1f0a5e-8a67-4c1f-9a53-2a3d0c7e5b11")
+                    .setSessionId("0d7c3e2a-51f4-4b8e-bc06-9f2e4a1d7c35")
+                    .build());
+            case "NewVersion" -> {
+                List<String> features = new ArrayList<>();
+                List<String> bugfix = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    features.add("新增功能" + i + ": 支持更多的编码格式和更低的延迟，改善弱网下的画面质量");
+                    bugfix.add("修复问题" + i + ": 某些情况下断线重连之后键盘鼠标无响应");
+                }
+                yield new LtMessage(LtProto.NewVersion.ID, NewVersionProto.NewVersion.newBuilder()
+                        .setMajor(1)
+                        .setMinor(3)
+                        .setPatch(0)
+                        .setForce(false)
+                        .setTimestamp(1700000000L)
+                        .setUrl("https://github.com/pjlt/lanthing-pc/releases")
+                        .addAllFeatures(features)
+                        .addAllBugfix(bugfix)
+                        .build());
+            }
+            default -> throw new IllegalArgumentException("Unknown sample message " + name);
+        };
+    }
+
+    // 一个完整的帧：header + type + body，checksum为true时是v3帧
+    public static ByteBuf frame(LtMessage message, boolean checksum) {
+        byte[] body = message.protoMsg.toByteArray();
+        ByteBuf frame = Unpooled.directBuffer(NetPacket.kHeaderLength + 4 + body.length);
+        frame.writeByte(checksum ? NetPacket.kVersion3 : NetPacket.kVersion2);
+        frame.writeMediumLE(4 + body.length);
+        frame.writeIntLE(0);
+        frame.writeIntLE((int) message.type);
+        frame.writeBytes(body);
+        if (checksum) {
+            CRC32C crc = new CRC32C();
+            crc.update(frame.nioBuffer(NetPacket.kHeaderLength, 4 + body.length));
+            frame.setIntLE(4, (int) crc.getValue());
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.codec;
+
+import cn.lanthing.ltproto.LtProto;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LtCodec按消息类型的编解码开销。compressThreshold大于0时对端声明了能解压，超过阈值的消息会走LZ4。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LtCodecBenchmark {
+
+    @Param({"KeepAlive", "LoginDevice", "JoinRoom", "NewVersion"})
+    public String message;
+
+    @Param({"0", "256"})
+    public int compressThreshold;
+
+    private EmbeddedChannel channel;
+
+    private LtMessage ltMessage;
+
+    // encode()的输出，给decode()当输入
+    private ByteBuf encodedPayload;
+
+    private short encodedFlags;
+
+    @Setup
+    public void setup() throws Exception {
+        channel = new EmbeddedChannel(new LtCodec(MessageRegistry.fromLtProto(), compressThreshold, new CodecStats()));
+        if (compressThreshold > 0) {
+            NetPacket hello = new NetPacket();
+            hello.flags = NetPacket.kFlagAcceptCompression;
+            hello.payload = Unpooled.buffer(4).writeIntLE((int) LtProto.KeepAlive.ID);
+            hello.payloadSize = 4;
+            channel.writeInbound(hello);
+            channel.readInbound();
+        }
+        ltMessage = BenchMessages.sample(message);
+        channel.writeOutbound(ltMessage);
+        NetPacket encoded = channel.readOutbound();
+        encodedPayload = Unpooled.directBuffer(encoded.payload.readableBytes()).writeBytes(encoded.payload);
+        encodedFlags = encoded.flags;
+        encoded.payload.release();
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        encodedPayload.release();
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        channel.writeOutbound(ltMessage);
+        NetPacket netPacket = channel.readOutbound();
+        blackhole.consume(netPacket);
+        netPacket.payload.release();
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        NetPacket netPacket = new NetPacket();
+        netPacket.flags = encodedFlags;
+        netPacket.payloadSize = encodedPayload.readableBytes();
+        netPacket.payload = encodedPayload.retainedDuplicate();
+        channel.writeInbound(netPacket);
+        LtMessage decoded = channel.readInbound();
+        blackhole.consume(decoded);
+    }
+}
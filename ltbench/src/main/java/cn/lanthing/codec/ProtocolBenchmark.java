@@ -0,0 +1,159 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protocol单独的编解码开销。
+ * decode: fragmentSize为0表示一次read就是一整帧，否则把帧切成很多个小ByteBuf依次喂进去，模拟TCP分片。
+ * encode: headroom为true是LtCodec的正常输出(原地写header)，false是FrameCache那种共享payload(header单独一块，分两次write)。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    @State(Scope.Thread)
+    public static class DecodeState {
+        @Param({"KeepAlive", "LoginDevice", "NewVersion"})
+        public String message;
+
+        @Param({"0", "16"})
+        public int fragmentSize;
+
+        @Param({"false", "true"})
+        public boolean checksum;
+
+        EmbeddedChannel channel;
+
+        ByteBuf frame;
+
+        final List<ByteBuf> fragments = new ArrayList<>();
+
+        @Setup
+        public void setup() {
+            channel = new EmbeddedChannel(new Protocol(checksum));
+            frame = BenchMessages.frame(BenchMessages.sample(message), checksum);
+            final int length = frame.readableBytes();
+            final int step = fragmentSize == 0 ? length : fragmentSize;
+            for (int offset = 0; offset < length; offset += step) {
+                fragments.add(frame.slice(offset, Math.min(step, length - offset)));
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            channel.finishAndReleaseAll();
+            frame.release();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class EncodeState {
+        @Param({"KeepAlive", "LoginDevice", "NewVersion"})
+        public String message;
+
+        @Param({"true", "false"})
+        public boolean headroom;
+
+        @Param({"false", "true"})
+        public boolean checksum;
+
+        EmbeddedChannel channel;
+
+        ByteBuf payload;
+
+        @Setup
+        public void setup() {
+            channel = new EmbeddedChannel(new Protocol(checksum));
+            LtMessage sample = BenchMessages.sample(message);
+            if (checksum) {
+                // 对端先发一个v3的包，之后的回包才会带checksum
+                channel.writeInbound(BenchMessages.frame(sample, true));
+                NetPacket hello = channel.readInbound();
+                hello.payload.release();
+            }
+            ByteBuf frame = BenchMessages.frame(sample, false);
+            payload = frame.copy(NetPacket.kHeaderLength, frame.readableBytes() - NetPacket.kHeaderLength);
+            frame.release();
+        }
+
+        @TearDown
+        public void tearDown() {
+            channel.finishAndReleaseAll();
+            payload.release();
+        }
+    }
+
+    @Benchmark
+    public void decode(DecodeState state, Blackhole blackhole) {
+        for (ByteBuf fragment : state.fragments) {
+            // 和socket读一样每次都是一个新的ByteBuf。用duplicate的话refCnt总是大于1，ByteToMessageDecoder每次都要重新拷贝累积缓冲区
+            state.channel.writeInbound(state.channel.alloc().directBuffer(fragment.readableBytes()).writeBytes(fragment, fragment.readerIndex(), fragment.readableBytes()));
+        }
+        NetPacket netPacket = state.channel.readInbound();
+        blackhole.consume(netPacket);
+        netPacket.payload.release();
+    }
+
+    @Benchmark
+    public void encode(EncodeState state, Blackhole blackhole) {
+        NetPacket netPacket = new NetPacket();
+        netPacket.payloadSize = state.payload.readableBytes();
+        if (state.headroom) {
+            ByteBuf frame = state.channel.alloc().directBuffer(NetPacket.kHeaderLength + netPacket.payloadSize);
+            frame.writerIndex(NetPacket.kHeaderLength);
+            frame.readerIndex(NetPacket.kHeaderLength);
+            frame.writeBytes(state.payload, state.payload.readerIndex(), netPacket.payloadSize);
+            netPacket.payload = frame;
+        } else {
+            netPacket.payload = state.payload.retainedDuplicate();
+        }
+        state.channel.writeOutbound(netPacket);
+        // headroom为false时header和payload是两个ByteBuf
+        ByteBuf out;
+        while ((out = state.channel.readOutbound()) != null) {
+            blackhole.consume(out);
+            out.release();
+        }
+    }
+}
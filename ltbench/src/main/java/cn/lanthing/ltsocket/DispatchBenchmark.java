@@ -0,0 +1,95 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 模拟handler里访问慢存储(SQLite写盘)时，不同executor下整体的处理能力。
+ * 每次操作给每条连接投递一个会阻塞storageMillis毫秒的任务，等所有任务跑完，结果换算成每秒处理的消息数。
+ * Virtual只有在JDK 21以上才是真的虚拟线程，否则和Blocking一样。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"WorkStealing", "Blocking", "Virtual"})
+    public ExecutorType executor;
+
+    @Param({"1000"})
+    public int connections;
+
+    @Param({"5"})
+    public int storageMillis;
+
+    private ExecutorService executorService;
+
+    private final List<Mailbox> mailboxes = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        executorService = executor.newExecutor(new SocketConfig().getBlockingExecutorThreads());
+        for (int i = 0; i < connections; i++) {
+            mailboxes.add(new Mailbox(executorService, 0));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Benchmark
+    // 和connections的默认值保持一致，改connections时这里也要改
+    @OperationsPerInvocation(1000)
+    public void slowStorage() throws Exception {
+        CountDownLatch done = new CountDownLatch(connections);
+        for (Mailbox mailbox : mailboxes) {
+            mailbox.offer(() -> {
+                Thread.sleep(storageMillis);
+                done.countDown();
+                return null;
+            });
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import cn.lanthing.codec.FrameCache;
+import cn.lanthing.codec.LtCodec;
+import cn.lanthing.codec.LtMessage;
+import cn.lanthing.codec.MessageRegistry;
+import cn.lanthing.codec.NetPacket;
+import cn.lanthing.codec.Protocol;
+import cn.lanthing.ltproto.LtProto;
+import cn.lanthing.ltproto.common.KeepAliveAckProto;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.support.StaticApplicationContext;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 从handler线程通过MessageDispatcher.send给另一条连接连续发burst条消息，统计传到transport的flush次数。
+ * 用的是loopback上真实的NIO socket，一次flush就是一次write系统调用，flushes/messages越小越好。
+ * 没用Local transport：它在对端不同EventLoop上读CompositeByteBuf时会丢数据，测不出正确的结果。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlushBenchmark {
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long flushes;
+
+        public long messages;
+    }
+
+    private static class FlushCounter extends ChannelOutboundHandlerAdapter {
+        final AtomicLong flushes = new AtomicLong(0);
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            flushes.incrementAndGet();
+            ctx.flush();
+        }
+    }
+
+    // TCP是流，按字节数算收到了几条
+    private static class Receiver extends ChannelInboundHandlerAdapter {
+        final Semaphore receivedBytes = new Semaphore(0);
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            receivedBytes.release(((ByteBuf) msg).readableBytes());
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private static final LtMessage kKeepAliveAck = FrameCache.preEncode(LtProto.KeepAliveAck.ID, KeepAliveAckProto.KeepAliveAck.getDefaultInstance());
+
+    // header + type + body
+    private static final int kFrameSize = NetPacket.kHeaderLength + 4 + KeepAliveAckProto.KeepAliveAck.getDefaultInstance().getSerializedSize();
+
+    @Param({"1", "16", "64"})
+    public int burst;
+
+    private StaticApplicationContext applicationContext;
+
+    private EventLoopGroup group;
+
+    private Channel client;
+
+    private MessageDispatcher dispatcher;
+
+    private long connectionID;
+
+    private final FlushCounter flushCounter = new FlushCounter();
+
+    private final Receiver receiver = new Receiver();
+
+    @Setup
+    public void setup() throws Exception {
+        applicationContext = new StaticApplicationContext();
+        applicationContext.registerSingleton("benchController", PipelineBenchmark.BenchController.class);
+        applicationContext.refresh();
+        dispatcher = new MessageDispatcher(PipelineBenchmark.BenchController.class, applicationContext);
+        MessageRegistry messageRegistry = MessageRegistry.fromLtProto();
+        group = new NioEventLoopGroup(2);
+        Channel server = new ServerBootstrap().group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast("flushCounter", flushCounter);
+                        ch.pipeline().addLast("protocol", new Protocol());
+                        ch.pipeline().addLast("message", new LtCodec(messageRegistry));
+                        ch.pipeline().addLast("connection", new Connection(dispatcher));
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        client = new Bootstrap().group(group)
+                .channel(NioSocketChannel.class)
+                .handler(receiver)
+                .connect(server.localAddress()).sync().channel();
+        while (dispatcher.getMailboxStats().isEmpty()) {
+            Thread.sleep(1);
+        }
+        connectionID = dispatcher.getMailboxStats().keySet().iterator().next();
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close().syncUninterruptibly();
+        group.shutdownGracefully().syncUninterruptibly();
+        applicationContext.close();
+    }
+
+    @Benchmark
+    public void send(Counters counters) throws InterruptedException {
+        for (int i = 0; i < burst; i++) {
+            dispatcher.send(connectionID, kKeepAliveAck);
+        }
+        receiver.receivedBytes.acquire(burst * kFrameSize);
+        counters.flushes += flushCounter.flushes.getAndSet(0);
+        counters.messages += burst;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import cn.lanthing.codec.BenchMessages;
+import io.netty.buffer.ByteBuf;
+import org.springframework.context.support.StaticApplicationContext;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 不是JMH基准：测每条空闲连接在服务端占多少堆内存。
+ * 客户端在另一个进程里建连，每条连接发一个KeepAlive之后就不再说话，和大量在线但不操作的设备一样。
+ * 建连前后各做一次full GC，堆使用量的差除以连接数就是每条连接常驻的字节数(包括Netty的channel、pipeline和我们自己的handler)。
+ * 连接数受ulimit -n限制：
+ * java -cp ltbench/target/benchmarks.jar cn.lanthing.ltsocket.IdleConnectionFootprint 10000
+ */
+public class IdleConnectionFootprint {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("client")) {
+            runClient(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        final int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        StaticApplicationContext applicationContext = new StaticApplicationContext();
+        applicationContext.registerSingleton("benchController", PipelineBenchmark.BenchController.class);
+        applicationContext.refresh();
+        // 和config/ltsvr.yml里的主要配置保持一致
+        SocketConfig config = new SocketConfig();
+        config.setIP("127.0.0.1");
+        try (ServerSocket socket = new ServerSocket(0)) {
+            config.setPort(socket.getLocalPort());
+        }
+        config.setReadIdleTimeout(60);
+        SocketConfig.RateLimit rateLimit = new SocketConfig.RateLimit();
+        rateLimit.setMessage("JoinRoom");
+        rateLimit.setPerConnection(1);
+        rateLimit.setPerIp(5);
+        config.setRateLimits(List.of(rateLimit));
+        MessageDispatcher dispatcher = new MessageDispatcher(PipelineBenchmark.BenchController.class, applicationContext, config);
+        SocketServer server = new SocketServer(config, new NonSslChannelInitializer(config, dispatcher), null);
+
+        final long before = usedHeap();
+        Process client = new ProcessBuilder(ProcessHandle.current().info().command().orElse("java"),
+                "-cp", System.getProperty("java.class.path"), IdleConnectionFootprint.class.getName(),
+                "client", String.valueOf(config.getPort()), String.valueOf(connections))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+        String line = reader.readLine();
+        if (!"ready".equals(line)) {
+            throw new Exception("Client failed: " + line);
+        }
+        // 等服务端处理完所有KeepAlive
+        while (dispatcher.getMailboxStats().size() < connections) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(1000);
+        final long after = usedHeap();
+        System.out.printf("%d idle connections, %d bytes retained per connection%n", connections, (after - before) / connections);
+
+        client.destroy();
+        client.waitFor();
+        server.stop();
+        applicationContext.close();
+        System.exit(0);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void runClient(int port, int connections) throws Exception {
+        ByteBuf frame = BenchMessages.frame(BenchMessages.sample("KeepAlive"), false);
+        byte[] keepAlive = new byte[frame.readableBytes()];
+        frame.readBytes(keepAlive);
+        frame.release();
+        List<SocketChannel> channels = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            channel.write(ByteBuffer.wrap(keepAlive));
+            channels.add(channel);
+        }
+        System.out.println("ready");
+        System.out.flush();
+        // 等服务端进程把自己关掉
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import cn.lanthing.codec.BenchMessages;
+import cn.lanthing.codec.FrameCache;
+import cn.lanthing.codec.LtCodec;
+import cn.lanthing.codec.LtMessage;
+import cn.lanthing.codec.MessageRegistry;
+import cn.lanthing.codec.Protocol;
+import cn.lanthing.ltproto.ErrorCodeOuterClass;
+import cn.lanthing.ltproto.LtProto;
+import cn.lanthing.ltproto.common.KeepAliveAckProto;
+import cn.lanthing.ltproto.common.KeepAliveProto;
+import cn.lanthing.ltproto.signaling.JoinRoomAckProto;
+import cn.lanthing.ltproto.signaling.JoinRoomProto;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.support.StaticApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个请求从字节进来，经过Protocol、LtCodec、Connection、MessageDispatcher到controller，再把回包编码成字节的完整来回。
+ * 用的是Netty的Local transport而不是EmbeddedChannel：handler在dispatcher的线程里回包，EmbeddedChannel不是线程安全的，
+ * 跑久了会丢包卡死。Local transport有真正的event loop，又没有系统调用的干扰，测的只是我们自己的代码。
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+    public static class BenchController {
+
+        private static final LtMessage kKeepAliveAck = FrameCache.preEncode(LtProto.KeepAliveAck.ID, KeepAliveAckProto.KeepAliveAck.getDefaultInstance());
+
+        @MessageMapping(proto = LtProto.KeepAlive, inline = true)
+        public LtMessage handleKeepAlive(long connectionID, KeepAliveProto.KeepAlive msg) {
+            return kKeepAliveAck;
+        }
+
+        @MessageMapping(proto = LtProto.JoinRoom)
+        public LtMessage handleJoinRoom(long connectionID, JoinRoomProto.JoinRoom msg) {
+            var ack = JoinRoomAckProto.JoinRoomAck.newBuilder().setErrCode(ErrorCodeOuterClass.ErrorCode.Success);
+            return new LtMessage(LtProto.JoinRoomAck.ID, ack.build());
+        }
+    }
+
+    private static class ResponseCollector extends ChannelInboundHandlerAdapter {
+        final BlockingQueue<ByteBuf> responses = new LinkedBlockingQueue<>();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            responses.add((ByteBuf) msg);
+        }
+    }
+
+    @Param({"KeepAlive", "JoinRoom"})
+    public String message;
+
+    @Param({"0", "16"})
+    public int fragmentSize;
+
+    private StaticApplicationContext applicationContext;
+
+    private EventLoopGroup group;
+
+    private Channel client;
+
+    private final ResponseCollector collector = new ResponseCollector();
+
+    private ByteBuf frame;
+
+    private final List<ByteBuf> fragments = new ArrayList<>();
+
+    @Setup
+    public void setup() throws Exception {
+        applicationContext = new StaticApplicationContext();
+        applicationContext.registerSingleton("benchController", BenchController.class);
+        applicationContext.refresh();
+        MessageDispatcher dispatcher = new MessageDispatcher(BenchController.class, applicationContext);
+        MessageRegistry messageRegistry = MessageRegistry.fromLtProto();
+        group = new DefaultEventLoopGroup(2);
+        LocalAddress address = new LocalAddress("ltbench-pipeline");
+        new ServerBootstrap().group(group)
+                .channel(LocalServerChannel.class)
+                .childHandler(new ChannelInitializer<LocalChannel>() {
+                    @Override
+                    protected void initChannel(LocalChannel ch) {
+                        ch.pipeline().addLast("protocol", new Protocol());
+                        ch.pipeline().addLast("message", new LtCodec(messageRegistry));
+                        ch.pipeline().addLast("connection", new Connection(dispatcher));
+                    }
+                })
+                .bind(address).sync();
+        client = new Bootstrap().group(group)
+                .channel(LocalChannel.class)
+                .handler(collector)
+                .connect(address).sync().channel();
+        frame = BenchMessages.frame(BenchMessages.sample(message), false);
+        final int length = frame.readableBytes();
+        final int step = fragmentSize == 0 ? length : fragmentSize;
+        for (int offset = 0; offset < length; offset += step) {
+            fragments.add(frame.slice(offset, Math.min(step, length - offset)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close().syncUninterruptibly();
+        group.shutdownGracefully().syncUninterruptibly();
+        frame.release();
+        applicationContext.close();
+    }
+
+    @Benchmark
+    public void roundTrip(Blackhole blackhole) throws InterruptedException {
+        for (ByteBuf fragment : fragments) {
+            client.write(client.alloc().directBuffer(fragment.readableBytes()).writeBytes(fragment, fragment.readerIndex(), fragment.readableBytes()));
+        }
+        client.flush();
+        ByteBuf response = collector.responses.take();
+        blackhole.consume(response);
+        response.release();
+    }
+}
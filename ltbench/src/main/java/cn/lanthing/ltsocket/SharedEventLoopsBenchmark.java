@@ -0,0 +1,240 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import cn.lanthing.codec.BenchMessages;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.concurrent.EventExecutor;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.support.StaticApplicationContext;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * 模拟ltsvr：一个进程里两个监听端口(controlled/controlling)，比较各自建事件循环和共用一组事件循环。
+ * 多个客户端线程轮流连到两个端口上做KeepAlive一来一回，JMH报告延迟，
+ * 每轮迭代结束时打印服务端事件循环线程数、JVM总线程数、每次一来一回的上下文切换次数(读/proc，只支持Linux)。
+ * 两种情况都用NIO，worker-threads都是0，即各自建时每个端口CPU核数*2，共用时一共CPU核数。
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class SharedEventLoopsBenchmark {
+
+    private static class ResponseCollector extends ChannelInboundHandlerAdapter {
+        final BlockingQueue<ByteBuf> responses = new LinkedBlockingQueue<>();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            responses.add((ByteBuf) msg);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private final ResponseCollector collector = new ResponseCollector();
+
+        private Channel channel;
+
+        @Setup
+        public void setup(SharedEventLoopsBenchmark benchmark) throws InterruptedException {
+            InetSocketAddress address = benchmark.addresses[benchmark.nextAddress.getAndIncrement() % benchmark.addresses.length];
+            channel = benchmark.bootstrap.clone().handler(new ChannelInitializer<>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                    // header: version(1) + payloadSize(3) + checksum(4)
+                    ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(ByteOrder.LITTLE_ENDIAN, 1 << 24, 1, 3, 4, 0, true));
+                    ch.pipeline().addLast(collector);
+                }
+            }).connect(address).sync().channel();
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            channel.close().sync();
+        }
+    }
+
+    @Param({"false", "true"})
+    public boolean shared;
+
+    private StaticApplicationContext applicationContext;
+
+    private EventLoops eventLoops;
+
+    private SocketServer[] servers;
+
+    private InetSocketAddress[] addresses;
+
+    private final AtomicInteger nextAddress = new AtomicInteger();
+
+    private EventLoopGroup clientGroup;
+
+    private Bootstrap bootstrap;
+
+    private ByteBuf keepAlive;
+
+    private final LongAdder roundTrips = new LongAdder();
+
+    private long contextSwitchesBefore;
+
+    @Setup
+    public void setup() throws Exception {
+        applicationContext = new StaticApplicationContext();
+        applicationContext.registerSingleton("benchController", PipelineBenchmark.BenchController.class);
+        applicationContext.refresh();
+        EventLoopConfig eventLoopConfig = new EventLoopConfig();
+        eventLoopConfig.setShared(shared);
+        eventLoopConfig.setTransport(TransportType.Nio);
+        eventLoops = EventLoops.fromConfig("shared", eventLoopConfig);
+        servers = new SocketServer[2];
+        addresses = new InetSocketAddress[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            MessageDispatcher dispatcher = new MessageDispatcher(PipelineBenchmark.BenchController.class, applicationContext);
+            SocketConfig config = new SocketConfig();
+            config.setIP("127.0.0.1");
+            try (ServerSocket socket = new ServerSocket(0)) {
+                config.setPort(socket.getLocalPort());
+            }
+            config.setTransport(TransportType.Nio);
+            servers[i] = new SocketServer(config, new NonSslChannelInitializer(config, dispatcher), null, eventLoops);
+            addresses[i] = new InetSocketAddress(config.getIP(), config.getPort());
+        }
+
+        clientGroup = TransportType.Nio.newEventLoopGroup(2);
+        bootstrap = new Bootstrap().group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true);
+        keepAlive = BenchMessages.frame(BenchMessages.sample("KeepAlive"), false);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        clientGroup.shutdownGracefully().sync();
+        for (SocketServer server : servers) {
+            server.stop();
+        }
+        if (eventLoops != null) {
+            eventLoops.stop();
+        }
+        keepAlive.release();
+        applicationContext.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void beforeIteration() {
+        roundTrips.reset();
+        contextSwitchesBefore = contextSwitches();
+    }
+
+    @TearDown(Level.Iteration)
+    public void afterIteration() {
+        int loopThreads = 0;
+        for (SocketServer server : servers) {
+            loopThreads += eventLoopThreads(server);
+            if (shared) {
+                // 共用的只算一次
+                break;
+            }
+        }
+        long switches = contextSwitches() - contextSwitchesBefore;
+        long count = roundTrips.sum();
+        System.out.printf("%nevent loop threads: %d, jvm threads: %d, context switches per round trip: %s%n",
+                loopThreads, ManagementFactory.getThreadMXBean().getThreadCount(),
+                contextSwitchesBefore < 0 || count == 0 ? "n/a" : String.format("%.2f", (double) switches / count));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void keepAliveRoundTrip(Client client, Blackhole blackhole) throws InterruptedException {
+        client.channel.writeAndFlush(keepAlive.retainedDuplicate());
+        ByteBuf response = client.collector.responses.take();
+        blackhole.consume(response);
+        response.release();
+        roundTrips.increment();
+    }
+
+    private static int eventLoopThreads(SocketServer server) {
+        int count = 0;
+        for (EventLoopGroup group : new EventLoopGroup[]{server.getBossGroup(), server.getChildGroup()}) {
+            for (EventExecutor ignored : group) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // 进程内所有线程的voluntary+nonvoluntary上下文切换次数，读不到返回-1
+    private static long contextSwitches() {
+        try (Stream<Path> tasks = Files.list(Path.of("/proc/self/task"))) {
+            long total = 0;
+            for (Path task : tasks.toList()) {
+                try (Stream<String> lines = Files.lines(task.resolve("status"))) {
+                    total += lines.filter(line -> line.contains("ctxt_switches:"))
+                            .mapToLong(line -> Long.parseLong(line.substring(line.indexOf(':') + 1).trim()))
+                            .sum();
+                } catch (IOException e) {
+                    // 线程已经退出
+                }
+            }
+            return total;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
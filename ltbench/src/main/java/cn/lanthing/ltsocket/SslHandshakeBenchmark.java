@@ -0,0 +1,182 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import cn.lanthing.codec.BenchMessages;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.support.StaticApplicationContext;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 服务端只开一个worker线程，测一个核每秒能完成多少次SSL握手，每次都是建连、握手、一来一回KeepAlive、断开。
+ * resume为true时客户端按host:port缓存session，除了第一次都应该走session复用；
+ * 发完KeepAlive再断开是为了让客户端收到TLS 1.3握手之后才发的session ticket。
+ * 证书从certsFolder下的server.crt/server.key读，可以这样生成：
+ * openssl req -x509 -newkey ec -pkeyopt ec_paramgen_curve:prime256v1 -nodes -days 365 -subj /CN=localhost -keyout server.key -out server.crt
+ * OpenSsl用的是ltsocket依赖的netty-tcnative-boringssl-static，当前平台加载不了时会退回JDK，看日志里SslChannelInitializer打印的实际provider。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SslHandshakeBenchmark {
+
+    private static class ResponseCollector extends ChannelInboundHandlerAdapter {
+        final BlockingQueue<ByteBuf> responses = new LinkedBlockingQueue<>();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            responses.add((ByteBuf) msg);
+        }
+    }
+
+    @Param({"Jdk", "OpenSsl"})
+    public SslProviderType provider;
+
+    @Param({"false", "true"})
+    public boolean resume;
+
+    @Param("certs")
+    public String certsFolder;
+
+    private StaticApplicationContext applicationContext;
+
+    private SslChannelInitializer sslChannelInitializer;
+
+    private SocketServer server;
+
+    private EventLoopGroup clientGroup;
+
+    private SslContext clientSslContext;
+
+    private InetSocketAddress serverAddress;
+
+    private ByteBuf keepAlive;
+
+    @Setup
+    public void setup() throws Exception {
+        if (!Files.exists(Path.of(certsFolder, "server.crt")) || !Files.exists(Path.of(certsFolder, "server.key"))) {
+            throw new Exception("server.crt/server.key not found in " + Path.of(certsFolder).toAbsolutePath() + ", see the comment of SslHandshakeBenchmark");
+        }
+        applicationContext = new StaticApplicationContext();
+        applicationContext.registerSingleton("benchController", PipelineBenchmark.BenchController.class);
+        applicationContext.refresh();
+        MessageDispatcher dispatcher = new MessageDispatcher(PipelineBenchmark.BenchController.class, applicationContext);
+        SocketConfig config = new SocketConfig();
+        config.setIP("127.0.0.1");
+        try (ServerSocket socket = new ServerSocket(0)) {
+            config.setPort(socket.getLocalPort());
+        }
+        try (ServerSocket socket = new ServerSocket(0)) {
+            config.setSslPort(socket.getLocalPort());
+        }
+        config.setEnableSsl(true);
+        config.setCertsFolder(certsFolder);
+        config.setCertChainFile("server.crt");
+        config.setPrivateKeyFile("server.key");
+        config.setSslProvider(provider);
+        config.setWorkerThreads(1);
+        sslChannelInitializer = new SslChannelInitializer(config, dispatcher);
+        server = new SocketServer(config, new NonSslChannelInitializer(config, dispatcher), sslChannelInitializer);
+
+        clientGroup = new NioEventLoopGroup(1);
+        clientSslContext = SslContextBuilder.forClient()
+                .sslProvider(SslProvider.JDK)
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .build();
+        serverAddress = new InetSocketAddress(config.getIP(), config.getSslPort());
+        keepAlive = BenchMessages.frame(BenchMessages.sample("KeepAlive"), false);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        System.out.println();
+        System.out.println("Server side: " + sslChannelInitializer.getSslStats().snapshot());
+        clientGroup.shutdownGracefully().sync();
+        server.stop();
+        keepAlive.release();
+        applicationContext.close();
+    }
+
+    @Benchmark
+    public void handshake() throws Exception {
+        ResponseCollector collector = new ResponseCollector();
+        SslHandler[] sslHandler = new SslHandler[1];
+        Channel channel = new Bootstrap().group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        // 带上对端地址，JDK的客户端才会按host:port缓存和复用session
+                        sslHandler[0] = resume
+                                ? clientSslContext.newHandler(ch.alloc(), serverAddress.getHostString(), serverAddress.getPort())
+                                : clientSslContext.newHandler(ch.alloc());
+                        ch.pipeline().addLast(sslHandler[0]);
+                        // header: version(1) + payloadSize(3) + checksum(4)
+                        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(ByteOrder.LITTLE_ENDIAN, 1 << 24, 1, 3, 4, 0, true));
+                        ch.pipeline().addLast(collector);
+                    }
+                })
+                .connect(serverAddress).sync().channel();
+        sslHandler[0].handshakeFuture().sync();
+        channel.writeAndFlush(keepAlive.retainedDuplicate());
+        collector.responses.take().release();
+        channel.close().sync();
+    }
+}
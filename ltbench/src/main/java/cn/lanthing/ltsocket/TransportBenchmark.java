@@ -0,0 +1,155 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import cn.lanthing.codec.BenchMessages;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.support.StaticApplicationContext;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteOrder;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 不同transport下，真实TCP(loopback)上的建连速度和一来一回的延迟。
+ * 客户端和服务端用同一种transport。当前机器不支持的transport会退回NIO，看日志里SocketServer打印的实际transport。
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+
+    private static class ResponseCollector extends ChannelInboundHandlerAdapter {
+        final BlockingQueue<ByteBuf> responses = new LinkedBlockingQueue<>();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            responses.add((ByteBuf) msg);
+        }
+    }
+
+    @Param({"Nio", "Epoll", "IoUring"})
+    public TransportType transport;
+
+    private StaticApplicationContext applicationContext;
+
+    private SocketServer server;
+
+    private EventLoopGroup clientGroup;
+
+    private Bootstrap bootstrap;
+
+    private Channel client;
+
+    private final ResponseCollector collector = new ResponseCollector();
+
+    private ByteBuf keepAlive;
+
+    @Setup
+    public void setup() throws Exception {
+        applicationContext = new StaticApplicationContext();
+        applicationContext.registerSingleton("benchController", PipelineBenchmark.BenchController.class);
+        applicationContext.refresh();
+        MessageDispatcher dispatcher = new MessageDispatcher(PipelineBenchmark.BenchController.class, applicationContext);
+        SocketConfig config = new SocketConfig();
+        config.setIP("127.0.0.1");
+        try (ServerSocket socket = new ServerSocket(0)) {
+            config.setPort(socket.getLocalPort());
+        }
+        config.setTransport(transport);
+        server = new SocketServer(config, new NonSslChannelInitializer(config, dispatcher), null);
+
+        TransportType resolved = transport.resolve();
+        clientGroup = resolved.newEventLoopGroup(1);
+        bootstrap = new Bootstrap().group(clientGroup)
+                .channel(switch (resolved) {
+                    case Epoll -> EpollSocketChannel.class;
+                    case IoUring -> IOUringSocketChannel.class;
+                    default -> NioSocketChannel.class;
+                })
+                .option(ChannelOption.TCP_NODELAY, true)
+                .remoteAddress(new InetSocketAddress(config.getIP(), config.getPort()));
+        client = bootstrap.clone().handler(new ChannelInitializer<>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                // header: version(1) + payloadSize(3) + checksum(4)
+                ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(ByteOrder.LITTLE_ENDIAN, 1 << 24, 1, 3, 4, 0, true));
+                ch.pipeline().addLast(collector);
+            }
+        }).connect().sync().channel();
+        keepAlive = BenchMessages.frame(BenchMessages.sample("KeepAlive"), false);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close().sync();
+        clientGroup.shutdownGracefully().sync();
+        server.stop();
+        keepAlive.release();
+        applicationContext.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void connect() throws InterruptedException {
+        Channel channel = bootstrap.clone().handler(new ChannelInboundHandlerAdapter()).connect().sync().channel();
+        channel.close().sync();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void keepAliveRoundTrip(Blackhole blackhole) throws InterruptedException {
+        client.writeAndFlush(keepAlive.retainedDuplicate());
+        ByteBuf response = collector.responses.take();
+        blackhole.consume(response);
+        response.release();
+    }
+}
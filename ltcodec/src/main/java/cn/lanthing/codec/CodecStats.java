@@ -0,0 +1,159 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.codec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// 按消息类型统计编解码的流量和开销。同一个server的所有连接共用一份，所以计数器都是LongAdder
+public class CodecStats {
+
+    // encode/decode的字节数是线上的大小，包含header，压缩过的按压缩后算
+    public record TypeStats(long type,
+                            long encodeCount, long encodeBytes, long decodeCount, long decodeBytes,
+                            long compressCount, long compressRawBytes, long compressedBytes, long compressNanos,
+                            long decompressCount, long decompressRawBytes, long decompressedBytes, long decompressNanos) {
+
+        // 压缩后大小/压缩前大小，越小越好
+        public double compressRatio() {
+            return compressRawBytes == 0 ? 0 : (double) compressedBytes / compressRawBytes;
+        }
+
+        public long compressNanosPerMessage() {
+            return compressCount == 0 ? 0 : compressNanos / compressCount;
+        }
+
+        public long decompressNanosPerMessage() {
+            return decompressCount == 0 ? 0 : decompressNanos / decompressCount;
+        }
+    }
+
+    private static class Counters {
+        final LongAdder encodeCount = new LongAdder();
+        final LongAdder encodeBytes = new LongAdder();
+        final LongAdder decodeCount = new LongAdder();
+        final LongAdder decodeBytes = new LongAdder();
+        final LongAdder compressCount = new LongAdder();
+        final LongAdder compressRawBytes = new LongAdder();
+        final LongAdder compressedBytes = new LongAdder();
+        final LongAdder compressNanos = new LongAdder();
+        final LongAdder decompressCount = new LongAdder();
+        final LongAdder decompressRawBytes = new LongAdder();
+        final LongAdder decompressedBytes = new LongAdder();
+        final LongAdder decompressNanos = new LongAdder();
+    }
+
+    // 和MessageRegistry一样直接用消息类型当下标，每条消息都要查一次，不能为了查表把type装箱成Long。
+    // 某个类型第一次出现时才CAS放进去，超出范围的类型不统计
+    private final AtomicReferenceArray<Counters> counters;
+
+    public CodecStats() {
+        this(MessageRegistry.kMaxTypeID);
+    }
+
+    // maxTypeID一般传MessageRegistry.getMaxTypeID()，数组按实际用到的最大ID分配
+    public CodecStats(int maxTypeID) {
+        counters = new AtomicReferenceArray<>(maxTypeID + 1);
+    }
+
+    private Counters countersOf(long type) {
+        if (type < 0 || type >= counters.length()) {
+            return null;
+        }
+        Counters c = counters.get((int) type);
+        if (c == null) {
+            Counters created = new Counters();
+            c = counters.compareAndExchange((int) type, null, created);
+            if (c == null) {
+                c = created;
+            }
+        }
+        return c;
+    }
+
+    public void onEncode(long type, int wireBytes) {
+        Counters c = countersOf(type);
+        if (c == null) {
+            return;
+        }
+        c.encodeCount.increment();
+        c.encodeBytes.add(wireBytes);
+    }
+
+    public void onDecode(long type, int wireBytes) {
+        Counters c = countersOf(type);
+        if (c == null) {
+            return;
+        }
+        c.decodeCount.increment();
+        c.decodeBytes.add(wireBytes);
+    }
+
+    public void onCompress(long type, int rawBytes, int compressedBytes, long nanos) {
+        Counters c = countersOf(type);
+        if (c == null) {
+            return;
+        }
+        c.compressCount.increment();
+        c.compressRawBytes.add(rawBytes);
+        c.compressedBytes.add(compressedBytes);
+        c.compressNanos.add(nanos);
+    }
+
+    public void onDecompress(long type, int rawBytes, int compressedBytes, long nanos) {
+        Counters c = countersOf(type);
+        if (c == null) {
+            return;
+        }
+        c.decompressCount.increment();
+        c.decompressRawBytes.add(rawBytes);
+        c.decompressedBytes.add(compressedBytes);
+        c.decompressNanos.add(nanos);
+    }
+
+    public List<TypeStats> snapshot() {
+        List<TypeStats> result = new ArrayList<>();
+        for (int type = 0; type < counters.length(); type++) {
+            Counters c = counters.get(type);
+            if (c == null) {
+                continue;
+            }
+            result.add(new TypeStats(type,
+                    c.encodeCount.sum(), c.encodeBytes.sum(), c.decodeCount.sum(), c.decodeBytes.sum(),
+                    c.compressCount.sum(), c.compressRawBytes.sum(), c.compressedBytes.sum(), c.compressNanos.sum(),
+                    c.decompressCount.sum(), c.decompressRawBytes.sum(), c.decompressedBytes.sum(), c.decompressNanos.sum()));
+        }
+        return result;
+    }
+}
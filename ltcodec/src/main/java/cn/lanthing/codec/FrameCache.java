@@ -0,0 +1,103 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.codec;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * 预先编码好的消息，比如KeepAliveAck、NewVersion。
+ * preEncode()返回的LtMessage可以被任意多个连接、任意多次发送：payload(type + body)只序列化一次，
+ * 放在一块不可释放的只读direct内存里，每次发送只是duplicate一下，由Protocol在前面拼上header。
+ * 这块内存永远不会释放，只能用于整个进程生命周期内不变的常量(static final)。
+ * 内容会变的(比如随versions文件变化的NewVersion)和一次性的群发消息用encodeShared()，payload放在池化内存里，靠引用计数回收。
+ */
+public final class FrameCache {
+
+    private FrameCache() {
+    }
+
+    public static LtMessage preEncode(long type, Message message) {
+        final int bodySize = message.getSerializedSize();
+        ByteBuf payload = Unpooled.directBuffer(4 + bodySize);
+        writePayload(payload, type, message, bodySize);
+        ByteBuf shared = Unpooled.unreleasableBuffer(payload.asReadOnly());
+        LtMessage ltMessage = new LtMessage(type, message);
+        ltMessage.encodedPayload = shared;
+        // 需要压缩的时候还是要从body开始
+        ltMessage.rawBody = shared.slice(4, bodySize);
+        return ltMessage;
+    }
+
+    // 和preEncode()一样只序列化一次，但payload从alloc里分配，返回时持有一个引用。
+    // 每发给一个连接先retain()一次，发送完成(或者被丢弃)时由LtCodec释放，调用方最后release()掉自己那一个
+    public static LtMessage encodeShared(ByteBufAllocator alloc, long type, Message message) {
+        final int bodySize = message.getSerializedSize();
+        ByteBuf payload = alloc.directBuffer(4 + bodySize);
+        try {
+            writePayload(payload, type, message, bodySize);
+        } catch (Exception e) {
+            payload.release();
+            throw e;
+        }
+        ByteBuf shared = payload.asReadOnly();
+        LtMessage ltMessage = new LtMessage(type, message);
+        ltMessage.encodedPayload = shared;
+        // slice和payload共用引用计数，LtMessage的retain()/release()就是payload的
+        ltMessage.rawBody = shared.slice(4, bodySize);
+        return ltMessage;
+    }
+
+    // 和LtCodec.encode()一样，protobuf直接序列化进payload，不经过toByteArray()的临时数组
+    private static void writePayload(ByteBuf payload, long type, Message message, int bodySize) {
+        payload.writeIntLE((int) type);
+        if (payload.nioBufferCount() != 1) {
+            payload.writeBytes(message.toByteArray());
+            return;
+        }
+        try {
+            CodedOutputStream output = CodedOutputStream.newInstance(payload.nioBuffer(payload.writerIndex(), bodySize));
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            // 按getSerializedSize()分配的空间，写不下说明message在序列化过程中被改了
+            throw new UncheckedIOException(e);
+        }
+        payload.writerIndex(payload.writerIndex() + bodySize);
+    }
+}
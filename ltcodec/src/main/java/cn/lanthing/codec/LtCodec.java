@@ -31,74 +31,194 @@
 
 package cn.lanthing.codec;
 
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Message;
-import io.netty.buffer.Unpooled;
+import com.google.protobuf.Parser;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageCodec;
-import io.netty.util.ByteProcessor;
+import io.netty.util.AttributeKey;
 import lombok.extern.slf4j.Slf4j;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
 
-import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.Random;
 
+// 没有连接级别的字段，一个监听端口的所有连接共用一个实例。唯一跟连接有关的状态放在channel的attribute里
 @Slf4j
+@ChannelHandler.Sharable
 public class LtCodec extends MessageToMessageCodec<NetPacket, LtMessage> {
 
-    public static final class MsgType {
-        public final long ID;
-        public final String className;
+    private static final int kMaxPayloadSize = 16 * 1024 * 1024;
 
-        public MsgType(long id, String name) {
-            ID = id;
-            className = name;
-        }
-    }
+    private static final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
 
-    private final static HashMap<Long, Method> createMethods = new HashMap<>();
+    // 对端发来的数据不可信，只能用safe版本
+    private static final LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
 
-    private final static Random random = new Random();
+    private final MessageRegistry messageRegistry;
 
-    private static boolean initialized = false;
+    // body不小于这个大小才压缩，<=0表示不压缩
+    private final int compressThreshold;
 
-    public static synchronized void initialize(List<MsgType> msgTypes) throws Exception {
-        if (initialized) {
-            return;
-        }
-        initialized = true;
-        for (var msgType : msgTypes) {
-            createMethods.put(msgType.ID, Class.forName(msgType.className).getDeclaredMethod("parseFrom", byte[].class));
-        }
+    private final CodecStats codecStats;
+
+    // 对端在header里带过kFlagAcceptCompression，说明它认识flag，并且能解压。
+    // 只有这种对端才会创建这个attribute，不支持压缩的旧客户端不多占内存
+    private static final AttributeKey<Boolean> kPeerAcceptsCompression = AttributeKey.valueOf(LtCodec.class, "peerAcceptsCompression");
+
+    public LtCodec(MessageRegistry messageRegistry) {
+        this(messageRegistry, 0, new CodecStats(messageRegistry.getMaxTypeID()));
+    }
+
+    public LtCodec(MessageRegistry messageRegistry, int compressThreshold, CodecStats codecStats) {
+        this.messageRegistry = messageRegistry;
+        this.compressThreshold = compressThreshold;
+        this.codecStats = codecStats;
     }
 
     @Override
-    protected void encode(ChannelHandlerContext channelHandlerContext, LtMessage ltMessage, List<Object> list) {
+    protected void encode(ChannelHandlerContext channelHandlerContext, LtMessage ltMessage, List<Object> list) throws Exception {
+        final ByteBuf rawBody = ltMessage.rawBody;
+        final boolean peerAcceptsCompression = channelHandlerContext.channel().hasAttr(kPeerAcceptsCompression);
+        final int bodySize = rawBody != null ? rawBody.readableBytes() : ltMessage.protoMsg.getSerializedSize();
         NetPacket netPacket = new NetPacket();
-        netPacket.payloadSize = ltMessage.protoMsg.getSerializedSize() + 4;
-        if (netPacket.payloadSize > 16 * 1024 * 1024) {
+        netPacket.payloadSize = bodySize + 4;
+        if (netPacket.payloadSize > kMaxPayloadSize) {
             log.error("LtMessage too long {}", netPacket.payloadSize);
             return;
         }
-        netPacket.payload = Unpooled.buffer(netPacket.payloadSize);
-        netPacket.payload.writeIntLE((int)ltMessage.type);
-        netPacket.payload.writeBytes(ltMessage.protoMsg.toByteArray());
+        if (ltMessage.encodedPayload != null && !shouldCompress(peerAcceptsCompression, bodySize)) {
+            // 预编码的消息，直接发共享payload的duplicate，header由Protocol单独写。
+            // Protocol写完会释放payload，所以要retain；FrameCache常量的retain/release都是空操作
+            if (peerAcceptsCompression) {
+                netPacket.flags = NetPacket.kFlagAcceptCompression;
+            }
+            netPacket.payload = ltMessage.encodedPayload.retainedDuplicate();
+            codecStats.onEncode(ltMessage.type, NetPacket.kHeaderLength + netPacket.payloadSize);
+            list.add(netPacket);
+            return;
+        }
+        // header、type、body一次写进同一块池化direct内存：前kHeaderLength字节留给Protocol原地填header，
+        // protobuf直接序列化进这块内存，不再经过toByteArray()和Protocol的二次拷贝
+        ByteBuf frame = channelHandlerContext.alloc().directBuffer(NetPacket.kHeaderLength + netPacket.payloadSize);
+        try {
+            frame.writerIndex(NetPacket.kHeaderLength);
+            frame.readerIndex(NetPacket.kHeaderLength);
+            frame.writeIntLE((int)ltMessage.type);
+            if (rawBody != null) {
+                // 收到后没改过的消息，原样写回去，不用再序列化
+                frame.writeBytes(rawBody, rawBody.readerIndex(), bodySize);
+            } else if (frame.nioBufferCount() == 1) {
+                CodedOutputStream output = CodedOutputStream.newInstance(frame.nioBuffer(frame.writerIndex(), bodySize));
+                ltMessage.protoMsg.writeTo(output);
+                output.checkNoSpaceLeft();
+                frame.writerIndex(frame.writerIndex() + bodySize);
+            } else {
+                frame.writeBytes(ltMessage.protoMsg.toByteArray());
+            }
+        } catch (Exception e) {
+            frame.release();
+            throw e;
+        }
+        if (peerAcceptsCompression) {
+            netPacket.flags = NetPacket.kFlagAcceptCompression;
+            if (shouldCompress(peerAcceptsCompression, bodySize)) {
+                frame = compress(channelHandlerContext, ltMessage.type, frame, bodySize, netPacket);
+            }
+        }
+        netPacket.payload = frame;
+        codecStats.onEncode(ltMessage.type, NetPacket.kHeaderLength + netPacket.payloadSize);
         list.add(netPacket);
     }
 
+    private boolean shouldCompress(boolean peerAcceptsCompression, int bodySize) {
+        return peerAcceptsCompression && compressThreshold > 0 && bodySize >= compressThreshold;
+    }
+
+    private ByteBuf compress(ChannelHandlerContext ctx, long type, ByteBuf frame, int bodySize, NetPacket netPacket) {
+        final long start = System.nanoTime();
+        final int maxCompressedSize = compressor.maxCompressedLength(bodySize);
+        // 同样预留header的位置，布局是 type(uint32) + 原始大小(uint32) + LZ4 block
+        ByteBuf compressed = ctx.alloc().directBuffer(NetPacket.kHeaderLength + 8 + maxCompressedSize);
+        try {
+            compressed.writerIndex(NetPacket.kHeaderLength);
+            compressed.readerIndex(NetPacket.kHeaderLength);
+            compressed.writeIntLE((int)type);
+            compressed.writeIntLE(bodySize);
+            ByteBuffer src = frame.nioBuffer(NetPacket.kHeaderLength + 4, bodySize);
+            ByteBuffer dest = compressed.nioBuffer(compressed.writerIndex(), maxCompressedSize);
+            final int compressedSize = compressor.compress(src, src.position(), bodySize, dest, dest.position(), maxCompressedSize);
+            if (compressedSize + 4 >= bodySize) {
+                // 压不动的数据原样发
+                compressed.release();
+                return frame;
+            }
+            compressed.writerIndex(compressed.writerIndex() + compressedSize);
+            frame.release();
+            netPacket.flags |= NetPacket.kFlagCompressed;
+            netPacket.payloadSize = 8 + compressedSize;
+            codecStats.onCompress(type, bodySize, compressedSize, System.nanoTime() - start);
+            return compressed;
+        } catch (Exception e) {
+            log.error("Compress message {} failed: {}", type, e.toString());
+            compressed.release();
+            return frame;
+        }
+    }
+
+    private ByteBuf decompress(ChannelHandlerContext ctx, long type, ByteBuf payload) throws Exception {
+        final long start = System.nanoTime();
+        final int rawSize = payload.readIntLE();
+        if (rawSize < 0 || rawSize > kMaxPayloadSize) {
+            throw new Exception("Invalid decompressed size " + rawSize);
+        }
+        final int compressedSize = payload.readableBytes();
+        ByteBuf body = ctx.alloc().directBuffer(rawSize);
+        try {
+            ByteBuffer src = payload.nioBuffer();
+            ByteBuffer dest = body.nioBuffer(0, rawSize);
+            final int size = decompressor.decompress(src, src.position(), compressedSize, dest, dest.position(), rawSize);
+            if (size != rawSize) {
+                throw new Exception("Decompressed size mismatch");
+            }
+            body.writerIndex(rawSize);
+        } catch (Exception e) {
+            body.release();
+            throw e;
+        }
+        codecStats.onDecompress(type, rawSize, compressedSize, System.nanoTime() - start);
+        return body;
+    }
+
     @Override
     protected void decode(ChannelHandlerContext channelHandlerContext, NetPacket netPacket, List<Object> list) throws Exception {
+        if ((netPacket.flags & NetPacket.kFlagAcceptCompression) != 0 && !channelHandlerContext.channel().hasAttr(kPeerAcceptsCompression)) {
+            channelHandlerContext.channel().attr(kPeerAcceptsCompression).set(true);
+        }
+        ByteBuf body = netPacket.payload;
         try {
             LtMessage message = new LtMessage();
             message.type = netPacket.payload.readUnsignedIntLE();
-            Method createMethod = LtCodec.createMethods.get(message.type);
-            if (createMethod == null) {
+            Parser<?> parser = messageRegistry.getParser(message.type);
+            if (parser == null) {
                 log.warn("Unknown message type: {}", message.type);
                 return;
             }
-            byte[] bytes = new byte[netPacket.payload.readableBytes()];
-            netPacket.payload.readBytes(bytes);
-            message.protoMsg = (Message) createMethod.invoke(null, bytes);
+            codecStats.onDecode(message.type, NetPacket.kHeaderLength + netPacket.payloadSize);
+            if ((netPacket.flags & NetPacket.kFlagCompressed) != 0) {
+                body = decompress(channelHandlerContext, message.type, netPacket.payload);
+            }
+            if (messageRegistry.isLazy(message.type)) {
+                // 先不解析，LtMessage持有body的一个引用，用到的时候再解析
+                list.add(LtMessage.fromRaw(message.type, body.retain(), parser));
+                return;
+            }
+            // 直接从payload的NIO视图解析，不再拷贝一份byte[]
+            message.protoMsg = (Message) parser.parseFrom(body.nioBuffer());
             if (message.protoMsg != null) {
                 list.add(message);
             }
@@ -106,6 +226,9 @@ public class LtCodec extends MessageToMessageCodec<NetPacket, LtMessage> {
             log.error("{}", e.toString());
         } finally {
             netPacket.payload.release();
+            if (body != netPacket.payload) {
+                body.release();
+            }
         }
 
     }
@@ -31,12 +31,28 @@
 
 package cn.lanthing.codec;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCounted;
 
-public class LtMessage {
+/**
+ * 一条消息。一般只有protoMsg；对于MessageRegistry里标记为lazy的类型，解码时只保留payload里的原始body，
+ * 第一次调用getProtoMsg()才解析，原样转发时LtCodec直接把原始body写出去，既不解析也不序列化。
+ * 引用计数只针对原始body，没有原始body的消息retain()/release()都是空操作，和以前的用法兼容。
+ */
+public class LtMessage implements ReferenceCounted {
     public long type;
     public Message protoMsg;
 
+    ByteBuf rawBody;
+
+    // FrameCache预编码的type + body，多个连接共享，不能修改
+    ByteBuf encodedPayload;
+
+    private Parser<?> parser;
+
     public LtMessage() {
     }
 
@@ -44,4 +60,71 @@ public class LtMessage {
         this.type = type;
         this.protoMsg = message;
     }
+
+    // 接管rawBody的一个引用
+    static LtMessage fromRaw(long type, ByteBuf rawBody, Parser<?> parser) {
+        LtMessage message = new LtMessage();
+        message.type = type;
+        message.rawBody = rawBody;
+        message.parser = parser;
+        return message;
+    }
+
+    public Message getProtoMsg() throws InvalidProtocolBufferException {
+        if (protoMsg == null && rawBody != null) {
+            protoMsg = (Message) parser.parseFrom(rawBody.nioBuffer());
+        }
+        return protoMsg;
+    }
+
+    public boolean hasRawBody() {
+        return rawBody != null;
+    }
+
+    @Override
+    public int refCnt() {
+        return rawBody == null ? 1 : rawBody.refCnt();
+    }
+
+    @Override
+    public LtMessage retain() {
+        if (rawBody != null) {
+            rawBody.retain();
+        }
+        return this;
+    }
+
+    @Override
+    public LtMessage retain(int increment) {
+        if (rawBody != null) {
+            rawBody.retain(increment);
+        }
+        return this;
+    }
+
+    @Override
+    public LtMessage touch() {
+        if (rawBody != null) {
+            rawBody.touch();
+        }
+        return this;
+    }
+
+    @Override
+    public LtMessage touch(Object hint) {
+        if (rawBody != null) {
+            rawBody.touch(hint);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return rawBody != null && rawBody.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return rawBody != null && rawBody.release(decrement);
+    }
 }
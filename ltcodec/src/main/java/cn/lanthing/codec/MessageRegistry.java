@@ -0,0 +1,111 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.codec;
+
+import cn.lanthing.ltproto.LtProto;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 消息类型ID到protobuf Parser的映射表。
+ * 构造时通过反射拿到每个消息的Parser，之后解码只需要一次数组下标访问，不再走Method.invoke。
+ * 不是全局单例，每个pipeline可以用自己的MessageRegistry。
+ */
+public class MessageRegistry {
+
+    public static final class MsgType {
+        public final long ID;
+        public final String className;
+
+        public MsgType(long id, String name) {
+            ID = id;
+            className = name;
+        }
+    }
+
+    // 消息ID都很小，直接用ID当数组下标，超过这个值说明ID的规划有问题
+    public static final int kMaxTypeID = 0xFFFF;
+
+    private final Parser<?>[] parsers;
+
+    // 标记为lazy的类型解码时不解析，LtMessage只带着原始body
+    private final boolean[] lazyTypes;
+
+    public MessageRegistry(List<MsgType> msgTypes) throws Exception {
+        long maxID = -1;
+        for (var msgType : msgTypes) {
+            if (msgType.ID < 0 || msgType.ID > kMaxTypeID) {
+                throw new Exception("Message type ID out of range: " + msgType.ID);
+            }
+            maxID = Math.max(maxID, msgType.ID);
+        }
+        parsers = new Parser<?>[(int) (maxID + 1)];
+        lazyTypes = new boolean[parsers.length];
+        for (var msgType : msgTypes) {
+            var defaultInstance = (Message) Class.forName(msgType.className).getMethod("getDefaultInstance").invoke(null);
+            parsers[(int) msgType.ID] = defaultInstance.getParserForType();
+        }
+    }
+
+    public static MessageRegistry fromLtProto() throws Exception {
+        List<MsgType> msgTypes = new ArrayList<>();
+        for (var msgType : LtProto.values()) {
+            msgTypes.add(new MsgType(msgType.ID, msgType.className));
+        }
+        return new MessageRegistry(msgTypes);
+    }
+
+    public int getMaxTypeID() {
+        return parsers.length - 1;
+    }
+
+    public Parser<?> getParser(long type) {
+        if (type < 0 || type >= parsers.length) {
+            return null;
+        }
+        return parsers[(int) type];
+    }
+
+    // 要在开始收消息之前设置好
+    public void setLazy(long type) {
+        if (getParser(type) != null) {
+            lazyTypes[(int) type] = true;
+        }
+    }
+
+    public boolean isLazy(long type) {
+        return type >= 0 && type < lazyTypes.length && lazyTypes[(int) type];
+    }
+}
@@ -35,10 +35,20 @@ import io.netty.buffer.ByteBuf;
 
 public class NetPacket {
     public static final short kVersion2 = 2;
+    // 与v2的区别只有checksum：v3的checksum是payload的CRC32C，v2的checksum总是0且不校验
+    public static final short kVersion3 = 3;
     public static final int kHeaderLength = 8;
+    // version字节的低6位才是版本号，高2位是flag。旧客户端不认识flag，所以只有对端先带了flag，我们才会带
+    public static final short kVersionMask = 0x3F;
+    // payload里type之后是 原始大小(uint32) + LZ4 block
+    public static final short kFlagCompressed = 0x80;
+    // 发送方能解压kFlagCompressed的包
+    public static final short kFlagAcceptCompression = 0x40;
 
     short version = kVersion2; //只用uint8
+    short flags = 0;
     int payloadSize; // 只用 uint24
     long checksum = 0; // 只用uint32
+    // 如果payload.readerIndex() >= kHeaderLength，说明前面预留了header的空间，Protocol会原地写header
     ByteBuf payload;
 }
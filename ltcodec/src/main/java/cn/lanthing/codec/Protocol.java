@@ -33,17 +33,72 @@ package cn.lanthing.codec;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.ByteToMessageCodec;
+import io.netty.util.concurrent.FastThreadLocal;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.List;
+import java.util.zip.CRC32C;
 
 @Slf4j
 public class Protocol extends ByteToMessageCodec<NetPacket> {
 
+    private final boolean enableChecksum;
+
+    // 对端发过v3的包，说明它能校验checksum，之后回给它的包也用v3。旧的v2客户端永远只会收到v2的包
+    private boolean peerSupportsChecksum = false;
+
+    // Protocol里有累积缓冲区，只能每条连接一个；CRC32C是无状态的计算，每个EventLoop线程一个就够了
+    private static final FastThreadLocal<CRC32C> kCrc32c = new FastThreadLocal<>() {
+        @Override
+        protected CRC32C initialValue() {
+            return new CRC32C();
+        }
+    };
+
+    public Protocol() {
+        this(false);
+    }
+
+    public Protocol(boolean enableChecksum) {
+        this.enableChecksum = enableChecksum;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof NetPacket netPacket && enableChecksum && peerSupportsChecksum) {
+            netPacket.version = NetPacket.kVersion3;
+            netPacket.checksum = checksum(netPacket.payload);
+        }
+        if (msg instanceof NetPacket netPacket && netPacket.payload.readerIndex() >= NetPacket.kHeaderLength) {
+            // payload前面已经预留了header的位置，原地填好header后整块发出去，不再拷贝到新的ByteBuf
+            ByteBuf frame = netPacket.payload;
+            final int headerIndex = frame.readerIndex() - NetPacket.kHeaderLength;
+            frame.setByte(headerIndex, netPacket.version | netPacket.flags);
+            frame.setMediumLE(headerIndex + 1, netPacket.payloadSize);
+            frame.setIntLE(headerIndex + 4, (int)netPacket.checksum);
+            frame.readerIndex(headerIndex);
+            ctx.write(frame, promise);
+            return;
+        }
+        if (msg instanceof NetPacket netPacket) {
+            // 没有预留header的payload(比如FrameCache里共享的payload)不能原地写，header单独一块，先后两次write，
+            // flush时出站缓冲区会把它们拼成一次writev，不用为每次发送分配CompositeByteBuf。payload写完才算这条消息发完
+            ByteBuf header = ctx.alloc().directBuffer(NetPacket.kHeaderLength);
+            header.writeByte(netPacket.version | netPacket.flags);
+            header.writeMediumLE(netPacket.payloadSize);
+            header.writeIntLE((int)netPacket.checksum);
+            ctx.write(header, ctx.voidPromise());
+            ctx.write(netPacket.payload, promise);
+            return;
+        }
+        super.write(ctx, msg, promise);
+    }
+
     @Override
     protected void encode(ChannelHandlerContext channelHandlerContext, NetPacket netPacket, ByteBuf byteBuf) {
-        byteBuf.writeByte(netPacket.version);
+        byteBuf.writeByte(netPacket.version | netPacket.flags);
         byteBuf.writeMediumLE(netPacket.payloadSize);
         byteBuf.writeIntLE((int)netPacket.checksum);
         byteBuf.writeBytes(netPacket.payload);
@@ -52,22 +107,41 @@ public class Protocol extends ByteToMessageCodec<NetPacket> {
 
     @Override
     protected void decode(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf, List<Object> list) throws Exception {
-        NetPacket netPacket = new NetPacket();
         if (byteBuf.readableBytes() < NetPacket.kHeaderLength) {
             return;
         }
-        netPacket.version = byteBuf.getUnsignedByte(0);
-        if (netPacket.version != NetPacket.kVersion2) {
+        final int readerIndex = byteBuf.readerIndex();
+        NetPacket netPacket = new NetPacket();
+        final short versionAndFlags = byteBuf.getUnsignedByte(readerIndex);
+        netPacket.version = (short) (versionAndFlags & NetPacket.kVersionMask);
+        netPacket.flags = (short) (versionAndFlags & ~NetPacket.kVersionMask);
+        if (netPacket.version != NetPacket.kVersion2 && netPacket.version != NetPacket.kVersion3) {
             throw  new Exception("Unsupported protocol version");
         }
-        netPacket.payloadSize = byteBuf.getUnsignedMediumLE(1);
-        netPacket.checksum = byteBuf.getUnsignedIntLE(4);
+        netPacket.payloadSize = byteBuf.getUnsignedMediumLE(readerIndex + 1);
+        netPacket.checksum = byteBuf.getUnsignedIntLE(readerIndex + 4);
         if (byteBuf.readableBytes() - NetPacket.kHeaderLength < netPacket.payloadSize) {
             return;
         }
-        netPacket.payload = byteBuf.readBytes(NetPacket.kHeaderLength + netPacket.payloadSize);
-        netPacket.payload.readerIndex(NetPacket.kHeaderLength);
-        byteBuf.discardReadBytes();
+        // 不拷贝payload，直接从累积缓冲区切一片出来（引用计数+1），由下游负责release。
+        // 累积缓冲区的回收交给ByteToMessageDecoder，这里不再discardReadBytes()。
+        netPacket.payload = byteBuf.retainedSlice(readerIndex + NetPacket.kHeaderLength, netPacket.payloadSize);
+        byteBuf.skipBytes(NetPacket.kHeaderLength + netPacket.payloadSize);
+        if (netPacket.version == NetPacket.kVersion3) {
+            if (checksum(netPacket.payload) != netPacket.checksum) {
+                netPacket.payload.release();
+                throw new Exception("Checksum mismatch");
+            }
+            peerSupportsChecksum = true;
+        }
         list.add(netPacket);
     }
+
+    private long checksum(ByteBuf payload) {
+        // CRC32C在x86/ARM上都有intrinsic，NIO视图不拷贝数据
+        final CRC32C crc32c = kCrc32c.get();
+        crc32c.reset();
+        crc32c.update(payload.nioBuffer());
+        return crc32c.getValue();
+    }
 }
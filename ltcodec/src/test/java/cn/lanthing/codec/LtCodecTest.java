@@ -0,0 +1,369 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.codec;
+
+import com.google.protobuf.StringValue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+public class LtCodecTest {
+
+    private static final long kStringType = 1;
+
+    private static final long kUnknownType = 999;
+
+    private static MessageRegistry messageRegistry;
+
+    private EmbeddedChannel channel;
+
+    private final List<ByteBuf> inputs = new ArrayList<>();
+
+    @BeforeAll
+    public static void setupCodec() throws Exception {
+        messageRegistry = new MessageRegistry(List.of(new MessageRegistry.MsgType(kStringType, StringValue.class.getName())));
+    }
+
+    @BeforeEach
+    public void setupChannel() {
+        channel = new EmbeddedChannel(new Protocol(), new LtCodec(messageRegistry));
+    }
+
+    @AfterEach
+    public void checkReleased() {
+        channel.finishAndReleaseAll();
+        for (var input : inputs) {
+            Assertions.assertEquals(0, input.refCnt());
+        }
+        inputs.clear();
+    }
+
+    private ByteBuf frame(long type, byte[] body) {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeByte(NetPacket.kVersion2);
+        buf.writeMediumLE(body.length + 4);
+        buf.writeIntLE(0);
+        buf.writeIntLE((int) type);
+        buf.writeBytes(body);
+        return buf;
+    }
+
+    private ByteBuf frameV3(long type, byte[] body, boolean corrupt) {
+        ByteBuf buf = frame(type, body);
+        CRC32C crc = new CRC32C();
+        crc.update(buf.nioBuffer(NetPacket.kHeaderLength, buf.readableBytes() - NetPacket.kHeaderLength));
+        buf.setByte(0, NetPacket.kVersion3);
+        buf.setIntLE(4, (int) crc.getValue() + (corrupt ? 1 : 0));
+        return buf;
+    }
+
+    // 预编码的payload没有预留header，Protocol把header和payload分两次write，拼起来才是一帧
+    private static ByteBuf readFrame(EmbeddedChannel ch) {
+        ByteBuf frame = Unpooled.buffer();
+        ByteBuf part;
+        while ((part = ch.readOutbound()) != null) {
+            frame.writeBytes(part);
+            part.release();
+        }
+        return frame;
+    }
+
+    private ByteBuf input(ByteBuf buf) {
+        inputs.add(buf);
+        return buf;
+    }
+
+    @Test
+    public void decodeSingleFrame() {
+        var msg = StringValue.of("hello lanthing");
+        channel.writeInbound(input(frame(kStringType, msg.toByteArray())));
+        LtMessage decoded = channel.readInbound();
+        Assertions.assertNotNull(decoded);
+        Assertions.assertEquals(kStringType, decoded.type);
+        Assertions.assertEquals(msg, decoded.protoMsg);
+        Assertions.assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void decodeFragmentedFrame() {
+        var msg = StringValue.of("a message split across several reads");
+        ByteBuf whole = frame(kStringType, msg.toByteArray());
+        int length = whole.readableBytes();
+        for (int offset = 0; offset < length; offset += 5) {
+            int size = Math.min(5, length - offset);
+            channel.writeInbound(input(whole.retainedSlice(offset, size).copy()));
+            if (offset + size < length) {
+                Assertions.assertNull(channel.readInbound());
+            }
+        }
+        whole.release();
+        LtMessage decoded = channel.readInbound();
+        Assertions.assertNotNull(decoded);
+        Assertions.assertEquals(msg, decoded.protoMsg);
+    }
+
+    @Test
+    public void decodeMultipleFramesInOneRead() {
+        ByteBuf buf = Unpooled.buffer();
+        for (int i = 0; i < 3; i++) {
+            ByteBuf f = frame(kStringType, StringValue.of("msg" + i).toByteArray());
+            buf.writeBytes(f);
+            f.release();
+        }
+        channel.writeInbound(input(buf));
+        for (int i = 0; i < 3; i++) {
+            LtMessage decoded = channel.readInbound();
+            Assertions.assertEquals(StringValue.of("msg" + i), decoded.protoMsg);
+        }
+        Assertions.assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void releaseUnknownType() {
+        channel.writeInbound(input(frame(kUnknownType, StringValue.of("x").toByteArray())));
+        Assertions.assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void releaseMalformedPayload() {
+        channel.writeInbound(input(frame(kStringType, new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff})));
+        Assertions.assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void encodeSingleBuffer() {
+        var msg = StringValue.of("encoded in one pass");
+        Assertions.assertTrue(channel.writeOutbound(new LtMessage(kStringType, msg)));
+        ByteBuf encoded = channel.readOutbound();
+        ByteBuf expected = frame(kStringType, msg.toByteArray());
+        Assertions.assertEquals(expected, encoded);
+        Assertions.assertNull(channel.readOutbound());
+        expected.release();
+        channel.writeInbound(input(encoded));
+        LtMessage decoded = channel.readInbound();
+        Assertions.assertEquals(msg, decoded.protoMsg);
+    }
+
+    @Test
+    public void rejectOutOfRangeTypeID() {
+        var msgTypes = List.of(new MessageRegistry.MsgType(MessageRegistry.kMaxTypeID + 1L, StringValue.class.getName()));
+        Assertions.assertThrows(Exception.class, () -> new MessageRegistry(msgTypes));
+        Assertions.assertNull(messageRegistry.getParser(kUnknownType));
+        Assertions.assertNull(messageRegistry.getParser(0xFFFFFFFFL));
+    }
+
+    @Test
+    public void checksumFollowsPeerVersion() {
+        channel = new EmbeddedChannel(new Protocol(true), new LtCodec(messageRegistry));
+        var msg = StringValue.of("checksummed");
+        // v2的对端收到的还是v2
+        channel.writeOutbound(new LtMessage(kStringType, msg));
+        ByteBuf v2 = channel.readOutbound();
+        Assertions.assertEquals(NetPacket.kVersion2, v2.getUnsignedByte(0));
+        Assertions.assertEquals(0, v2.getIntLE(4));
+        v2.release();
+        // 对端发过v3之后，回包改用v3，并且能被自己校验通过
+        channel.writeInbound(input(frameV3(kStringType, msg.toByteArray(), false)));
+        LtMessage decoded = channel.readInbound();
+        Assertions.assertEquals(msg, decoded.protoMsg);
+        channel.writeOutbound(new LtMessage(kStringType, msg));
+        ByteBuf v3 = channel.readOutbound();
+        ByteBuf expected = frameV3(kStringType, msg.toByteArray(), false);
+        Assertions.assertEquals(expected, v3);
+        expected.release();
+        channel.writeInbound(input(v3));
+        decoded = channel.readInbound();
+        Assertions.assertEquals(msg, decoded.protoMsg);
+    }
+
+    @Test
+    public void rejectChecksumMismatch() {
+        ByteBuf corrupted = input(frameV3(kStringType, StringValue.of("corrupted").toByteArray(), true));
+        Assertions.assertThrows(DecoderException.class, () -> channel.writeInbound(corrupted));
+        Assertions.assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void compressAfterPeerAccepts() {
+        CodecStats stats = new CodecStats();
+        channel = new EmbeddedChannel(new Protocol(), new LtCodec(messageRegistry, 64, stats));
+        var large = StringValue.of("features and bugfixes ".repeat(50));
+        var small = StringValue.of("small");
+        // 对端没声明能解压之前，大消息也不压缩，header里也不带flag
+        channel.writeOutbound(new LtMessage(kStringType, large));
+        ByteBuf plain = channel.readOutbound();
+        Assertions.assertEquals(NetPacket.kVersion2, plain.getUnsignedByte(0));
+        plain.release();
+
+        ByteBuf hello = frame(kStringType, small.toByteArray());
+        hello.setByte(0, NetPacket.kVersion2 | NetPacket.kFlagAcceptCompression);
+        channel.writeInbound(input(hello));
+        Assertions.assertEquals(small, ((LtMessage) channel.readInbound()).protoMsg);
+
+        channel.writeOutbound(new LtMessage(kStringType, small));
+        ByteBuf smallFrame = channel.readOutbound();
+        Assertions.assertEquals(NetPacket.kVersion2 | NetPacket.kFlagAcceptCompression, smallFrame.getUnsignedByte(0));
+        smallFrame.release();
+
+        channel.writeOutbound(new LtMessage(kStringType, large));
+        ByteBuf compressed = channel.readOutbound();
+        Assertions.assertEquals(NetPacket.kVersion2 | NetPacket.kFlagAcceptCompression | NetPacket.kFlagCompressed,
+                compressed.getUnsignedByte(0));
+        Assertions.assertTrue(compressed.readableBytes() < large.getSerializedSize());
+        // 压缩过的包自己也能解回来
+        channel.writeInbound(input(compressed));
+        Assertions.assertEquals(large, ((LtMessage) channel.readInbound()).protoMsg);
+
+        var typeStats = stats.snapshot();
+        Assertions.assertEquals(1, typeStats.size());
+        Assertions.assertEquals(1, typeStats.get(0).compressCount());
+        Assertions.assertEquals(1, typeStats.get(0).decompressCount());
+        Assertions.assertTrue(typeStats.get(0).compressRatio() < 1);
+    }
+
+    @Test
+    public void shareCodecAcrossChannels() {
+        // 同一个LtCodec加到两条连接上，一条声明了能解压，另一条不受影响
+        LtCodec shared = new LtCodec(messageRegistry, 64, new CodecStats());
+        channel = new EmbeddedChannel(new Protocol(), shared);
+        EmbeddedChannel other = new EmbeddedChannel(new Protocol(), shared);
+        var large = StringValue.of("features and bugfixes ".repeat(50));
+        ByteBuf hello = frame(kStringType, StringValue.of("small").toByteArray());
+        hello.setByte(0, NetPacket.kVersion2 | NetPacket.kFlagAcceptCompression);
+        channel.writeInbound(input(hello));
+        ((LtMessage) channel.readInbound()).release();
+
+        channel.writeOutbound(new LtMessage(kStringType, large));
+        ByteBuf compressed = channel.readOutbound();
+        Assertions.assertNotEquals(0, compressed.getUnsignedByte(0) & NetPacket.kFlagCompressed);
+        compressed.release();
+
+        other.writeOutbound(new LtMessage(kStringType, large));
+        ByteBuf plain = other.readOutbound();
+        Assertions.assertEquals(NetPacket.kVersion2, plain.getUnsignedByte(0));
+        plain.release();
+        other.finishAndReleaseAll();
+    }
+
+    @Test
+    public void countWireBytes() {
+        CodecStats stats = new CodecStats();
+        channel = new EmbeddedChannel(new Protocol(), new LtCodec(messageRegistry, 0, stats));
+        var msg = StringValue.of("count me");
+        channel.writeOutbound(new LtMessage(kStringType, msg));
+        ByteBuf encoded = channel.readOutbound();
+        final int frameSize = encoded.readableBytes();
+        channel.writeInbound(input(encoded));
+        Assertions.assertEquals(msg, ((LtMessage) channel.readInbound()).protoMsg);
+
+        var typeStats = stats.snapshot().get(0);
+        Assertions.assertEquals(1, typeStats.encodeCount());
+        Assertions.assertEquals(frameSize, typeStats.encodeBytes());
+        Assertions.assertEquals(1, typeStats.decodeCount());
+        Assertions.assertEquals(frameSize, typeStats.decodeBytes());
+    }
+
+    @Test
+    public void releaseMalformedCompressedPayload() {
+        ByteBuf bad = frame(kStringType, new byte[]{100, 0, 0, 0, 1, 2, 3});
+        bad.setByte(0, NetPacket.kVersion2 | NetPacket.kFlagCompressed);
+        channel.writeInbound(input(bad));
+        Assertions.assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void forwardLazyMessageWithoutParsing() throws Exception {
+        MessageRegistry lazyRegistry = new MessageRegistry(List.of(new MessageRegistry.MsgType(kStringType, StringValue.class.getName())));
+        lazyRegistry.setLazy(kStringType);
+        channel = new EmbeddedChannel(new Protocol(), new LtCodec(lazyRegistry));
+        var msg = StringValue.of("sdp offer");
+        channel.writeInbound(input(frame(kStringType, msg.toByteArray())));
+        LtMessage decoded = channel.readInbound();
+        Assertions.assertTrue(decoded.hasRawBody());
+        Assertions.assertNull(decoded.protoMsg);
+        Assertions.assertEquals(1, decoded.refCnt());
+        // 原样写出去，和收到的帧一模一样；写完之后原始body被释放
+        channel.writeOutbound(decoded.retain());
+        ByteBuf forwarded = channel.readOutbound();
+        ByteBuf expected = frame(kStringType, msg.toByteArray());
+        Assertions.assertEquals(expected, forwarded);
+        expected.release();
+        forwarded.release();
+        Assertions.assertEquals(1, decoded.refCnt());
+        Assertions.assertEquals(msg, decoded.getProtoMsg());
+        Assertions.assertTrue(decoded.release());
+    }
+
+    @Test
+    public void sendPreEncodedMessageRepeatedly() {
+        var msg = StringValue.of("keep alive ack");
+        LtMessage cached = FrameCache.preEncode(kStringType, msg);
+        ByteBuf expected = frame(kStringType, msg.toByteArray());
+        for (int i = 0; i < 3; i++) {
+            channel.writeOutbound(cached);
+            ByteBuf encoded = readFrame(channel);
+            Assertions.assertEquals(expected, encoded);
+            encoded.release();
+        }
+        expected.release();
+        Assertions.assertEquals(1, cached.refCnt());
+    }
+
+    @Test
+    public void releaseSharedMessageAfterAllWrites() {
+        var msg = StringValue.of("maintenance");
+        EmbeddedChannel other = new EmbeddedChannel(new Protocol(), new LtCodec(messageRegistry));
+        LtMessage shared = FrameCache.encodeShared(PooledByteBufAllocator.DEFAULT, kStringType, msg);
+        ByteBuf expected = frame(kStringType, msg.toByteArray());
+        for (EmbeddedChannel ch : new EmbeddedChannel[]{channel, other}) {
+            ch.writeOutbound(shared.retain());
+            ByteBuf encoded = readFrame(ch);
+            Assertions.assertEquals(expected, encoded);
+            encoded.release();
+        }
+        expected.release();
+        Assertions.assertEquals(1, shared.refCnt());
+        Assertions.assertTrue(shared.release());
+        Assertions.assertFalse(other.finish());
+    }
+}
@@ -31,6 +31,7 @@
 
 package cn.lanthing.sig.controller;
 
+import cn.lanthing.codec.FrameCache;
 import cn.lanthing.codec.LtMessage;
 import cn.lanthing.ltproto.ErrorCodeOuterClass;
 import cn.lanthing.ltproto.LtProto;
@@ -39,7 +40,6 @@ import cn.lanthing.ltproto.common.KeepAliveProto;
 import cn.lanthing.ltproto.signaling.JoinRoomAckProto;
 import cn.lanthing.ltproto.signaling.JoinRoomProto;
 import cn.lanthing.ltproto.signaling.SignalingMessageAckProto;
-import cn.lanthing.ltproto.signaling.SignalingMessageProto;
 import cn.lanthing.ltsocket.ConnectionEvent;
 import cn.lanthing.ltsocket.ConnectionEventType;
 import cn.lanthing.ltsocket.MessageController;
@@ -56,6 +56,8 @@ import org.springframework.stereotype.Component;
 @Component
 public class SignalingController {
 
+    private static final LtMessage kKeepAliveAck = FrameCache.preEncode(LtProto.KeepAliveAck.ID, KeepAliveAckProto.KeepAliveAck.getDefaultInstance());
+
     @Autowired
     private RoomService roomService;
 
@@ -92,7 +94,8 @@ public class SignalingController {
     }
 
     @MessageMapping(proto=LtProto.SignalingMessage)
-    public LtMessage handleSignalingMessage(long connectionID, SignalingMessageProto.SignalingMessage msg) {
+    public LtMessage handleSignalingMessage(long connectionID, LtMessage msg) {
+        // 信令只是原样转给对端，不需要解析SDP/ICE内容
         var ack = SignalingMessageAckProto.SignalingMessageAck.newBuilder();
         Session peer = roomService.getPeer(connectionID);
         if (peer == null) {
@@ -101,13 +104,12 @@ public class SignalingController {
             return new LtMessage(LtProto.SignalingMessageAck.ID, ack.build());
         }
         ack.setErrCode(ErrorCodeOuterClass.ErrorCode.Success);
-        socketService.send(peer.getConnectionID(), new LtMessage(LtProto.SignalingMessage.ID, msg));
+        socketService.send(peer.getConnectionID(), msg.retain());
         return new LtMessage(LtProto.SignalingMessageAck.ID, ack.build());
     }
 
-    @MessageMapping(proto = LtProto.KeepAlive)
+    @MessageMapping(proto = LtProto.KeepAlive, inline = true)
     public LtMessage handleKeepAlive(long connectionID, KeepAliveProto.KeepAlive msg) {
-        var ack  = KeepAliveAckProto.KeepAliveAck.newBuilder();
-        return new LtMessage(LtProto.KeepAliveAck.ID, ack.build());
+        return kKeepAliveAck;
     }
 }
@@ -49,7 +49,7 @@ public class ChannelInitializer {
 
     @Bean
     public NonSslChannelInitializer nonSslChannelInitializer() throws Exception {
-        return new NonSslChannelInitializer(messageDispatcher);
+        return new NonSslChannelInitializer(socketConfig, messageDispatcher);
     }
 
     @Bean
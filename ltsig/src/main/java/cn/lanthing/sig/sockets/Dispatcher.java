@@ -32,6 +32,7 @@
 package cn.lanthing.sig.sockets;
 
 import cn.lanthing.ltsocket.MessageDispatcher;
+import cn.lanthing.ltsocket.SocketConfig;
 import cn.lanthing.sig.controller.SignalingController;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
@@ -44,8 +45,11 @@ public class Dispatcher {
     @Autowired
     private ApplicationContext applicationContext;
 
+    @Autowired
+    private SocketConfig socketConfig;
+
     @Bean
     public MessageDispatcher messageDispatcher() throws Exception {
-        return new MessageDispatcher(SignalingController.class, applicationContext);
+        return new MessageDispatcher(SignalingController.class, applicationContext, socketConfig);
     }
 }
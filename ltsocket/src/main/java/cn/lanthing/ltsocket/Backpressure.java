@@ -0,0 +1,120 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import cn.lanthing.ltproto.LtProto;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 对端不读数据时(慢消费者)怎么办。channel的待发送数据超过write-buffer-high-water-mark会变成不可写，这时按policy处理：
+ * drop: 不可写期间丢掉droppable-messages里列出的消息，其他消息照发；
+ * pause_read: 暂停读这条连接，请求进不来也就不会产生新的回包，降到low以下再恢复；
+ * close: 直接断开。
+ * 不管哪种policy，待发送数据超过max-pending-write-bytes都会断开，服务端主动推的消息不受pause_read控制，需要这个兜底。
+ * 一个监听端口一个，统计的是这个端口下所有连接。
+ */
+@Slf4j
+public class Backpressure {
+
+    public enum Policy {
+        Drop,
+        PauseRead,
+        Close,
+    }
+
+    // slowConsumers是当前不可写的连接数，其他都是累计值
+    public record Stats(long slowConsumers, long slowEvents, long droppedMessages, long closedConnections) {}
+
+    private final Policy policy;
+
+    private final long maxPendingWriteBytes;
+
+    private final Set<Long> droppableTypes = new HashSet<>();
+
+    private final LongAdder slowConsumers = new LongAdder();
+
+    private final LongAdder slowEvents = new LongAdder();
+
+    private final LongAdder droppedMessages = new LongAdder();
+
+    private final LongAdder closedConnections = new LongAdder();
+
+    public Backpressure(Policy policy, long maxPendingWriteBytes, List<String> droppableMessages) {
+        this.policy = policy;
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+        for (String name : droppableMessages) {
+            droppableTypes.add(LtProto.valueOf(name).ID);
+        }
+    }
+
+    public static Backpressure fromConfig(SocketConfig config) {
+        return new Backpressure(config.getSlowConsumerPolicy(), config.getMaxPendingWriteBytes(), config.getDroppableMessages());
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public Stats getStats() {
+        return new Stats(slowConsumers.sum(), slowEvents.sum(), droppedMessages.sum(), closedConnections.sum());
+    }
+
+    boolean isDroppable(long type) {
+        return policy == Policy.Drop && droppableTypes.contains(type);
+    }
+
+    boolean exceedsLimit(long pendingWriteBytes) {
+        return maxPendingWriteBytes > 0 && pendingWriteBytes > maxPendingWriteBytes;
+    }
+
+    void onSlow() {
+        slowConsumers.increment();
+        slowEvents.increment();
+    }
+
+    void onRecovered() {
+        slowConsumers.decrement();
+    }
+
+    void onDropped() {
+        droppedMessages.increment();
+    }
+
+    void onClosed() {
+        closedConnections.increment();
+    }
+}
@@ -32,15 +32,21 @@
 package cn.lanthing.ltsocket;
 
 import cn.lanthing.codec.LtMessage;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.ArrayDeque;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 @Slf4j
 public class Connection extends ChannelInboundHandlerAdapter {
@@ -53,8 +59,6 @@ public class Connection extends ChannelInboundHandlerAdapter {
 
     private final MessageDispatcher messageDispatcher;
 
-    private boolean hasFlyingTask = false;
-
     private Status status = Status.Closed;
 
     private static final AtomicLong counter;
@@ -64,25 +68,165 @@ public class Connection extends ChannelInboundHandlerAdapter {
 
     public final long ID;
 
-    private final Queue<Callable<Void>> pendingTasks = new ArrayDeque<>();
+    // 这条连接上的消息和连接事件都按顺序进这个信箱，保证同一条连接的handler不会并发执行。
+    // 第一次要投递时才创建，只收inline消息的连接一直是null。只在EventLoop上创建和投递，volatile是给读统计的线程用的
+    private volatile Mailbox mailbox;
+
+    private final int mailboxCapacity;
+
+    // 为null时不做任何限制
+    private final Backpressure backpressure;
+
+    private boolean slow = false;
+
+    // 为null时不限速
+    private final RateLimiter rateLimiter;
+
+    // 第一次收到要限速的消息时才创建，大部分连接永远用不上。只在EventLoop上访问
+    private RateLimiter.Bucket[] rateLimitBuckets;
+
+    private InetAddress remoteAddress;
+
+    // 其他线程send()的消息先放这里，第一次有其他线程发消息时才CAS创建，只在EventLoop上回包的连接一直是null
+    private volatile ConcurrentLinkedQueue<LtMessage> outbound;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Connection, ConcurrentLinkedQueue> kOutbound =
+            AtomicReferenceFieldUpdater.newUpdater(Connection.class, ConcurrentLinkedQueue.class, "outbound");
+
+    private static final Mailbox.Stats kEmptyMailboxStats = new Mailbox.Stats(0, 0, 0, 0, 0);
+
+    private static final AtomicIntegerFieldUpdater<Connection> kFlushScheduled = AtomicIntegerFieldUpdater.newUpdater(Connection.class, "flushScheduled");
+
+    // 0或1，用字段更新器，每条连接省一个AtomicBoolean
+    private volatile int flushScheduled = 0;
+
+    // 下面两个只在EventLoop上访问。channelRead到channelReadComplete之间在EventLoop上send()的消息只write，
+    // 到channelReadComplete再统一flush，一次读到的多个请求的回包合成一次write系统调用
+    private boolean reading = false;
+
+    private boolean flushPending = false;
 
     public Connection(MessageDispatcher dispatcher) {
+        this(dispatcher, 0, null);
+    }
+
+    public Connection(MessageDispatcher dispatcher, int mailboxCapacity, Backpressure backpressure) {
         ID = counter.incrementAndGet();
         messageDispatcher = dispatcher;
+        this.mailboxCapacity = mailboxCapacity;
+        this.backpressure = backpressure;
+        rateLimiter = dispatcher.getRateLimiter();
     }
 
-    public void submitTaskToExecutor(Callable<Void> task) {
-        channel.eventLoop().submit(task);
+    // 还在Netty出站缓冲区里没写到socket的字节数
+    public long getPendingWriteBytes() {
+        var outboundBuffer = channel == null ? null : channel.unsafe().outboundBuffer();
+        return outboundBuffer == null ? 0 : outboundBuffer.totalPendingWriteBytes();
     }
 
+    public Mailbox.Stats getMailboxStats() {
+        Mailbox m = mailbox;
+        return m == null ? kEmptyMailboxStats : m.getStats();
+    }
+
+    // 只能在EventLoop上调用
+    void submitToMailbox(Callable<Void> task) {
+        mailbox().forceOffer(task);
+    }
+
+    private Mailbox mailbox() {
+        Mailbox m = mailbox;
+        if (m == null) {
+            m = messageDispatcher.newMailbox(mailboxCapacity);
+            mailbox = m;
+        }
+        return m;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Queue<LtMessage> outbound() {
+        ConcurrentLinkedQueue<LtMessage> q = outbound;
+        if (q == null) {
+            q = new ConcurrentLinkedQueue<>();
+            if (!kOutbound.compareAndSet(this, null, q)) {
+                q = outbound;
+            }
+        }
+        return q;
+    }
+
+    // 可以在任意线程调用。在EventLoop上(比如inline handler)直接write，不经过队列和任务；
+    // 其他线程的消息先进outbound队列，每批只往EventLoop投递一次任务，
+    // 这一批全部write完再flush一次，同一条连接上连续发的消息只产生一次write系统调用
     public void send(LtMessage ltMessage) {
-        if (!channel.eventLoop().inEventLoop()) {
-            channel.eventLoop().submit(() -> {
-                channel.writeAndFlush(ltMessage);
-            });
-        } else {
-            channel.writeAndFlush(ltMessage);
+        if (channel.eventLoop().inEventLoop()) {
+            // 队列里可能还有别的线程先发的消息在等flush任务，先把它们写出去，保证顺序
+            Queue<LtMessage> q = outbound;
+            LtMessage queued;
+            while (q != null && (queued = q.poll()) != null) {
+                flushPending |= write(queued);
+            }
+            flushPending |= write(ltMessage);
+            if (!reading && flushPending) {
+                flushPending = false;
+                channel.flush();
+            }
+            return;
+        }
+        outbound().add(ltMessage);
+        if (kFlushScheduled.compareAndSet(this, 0, 1)) {
+            channel.eventLoop().execute(this::flushOutbound);
+        }
+    }
+
+    // 只能在这条连接的EventLoop上调用。只入队不写，返回true表示抢到了flush标记，调用方要负责随后调用flushOutbound()；
+    // 返回false说明已经有flush在排队，消息会被它带走。群发时同一个EventLoop上的连接由一个任务统一flush，不再每条连接各投递一次任务
+    boolean enqueueOnEventLoop(LtMessage ltMessage) {
+        outbound().add(ltMessage);
+        return kFlushScheduled.compareAndSet(this, 0, 1);
+    }
+
+    EventLoop eventLoop() {
+        return channel.eventLoop();
+    }
+
+    ByteBufAllocator alloc() {
+        return channel.alloc();
+    }
+
+    void flushOutbound() {
+        // 先清标记再取，取的过程中新进来的消息要么被这一轮取走，要么会触发下一轮
+        flushScheduled = 0;
+        Queue<LtMessage> q = outbound;
+        boolean written = false;
+        LtMessage ltMessage;
+        while (q != null && (ltMessage = q.poll()) != null) {
+            written |= write(ltMessage);
+        }
+        if (written) {
+            flushPending = false;
+            channel.flush();
+        }
+    }
+
+    private boolean write(LtMessage ltMessage) {
+        if (backpressure != null && !channel.isWritable()) {
+            if (backpressure.exceedsLimit(getPendingWriteBytes())) {
+                log.warn("Connection {} has {} bytes pending write, closing", ID, getPendingWriteBytes());
+                ltMessage.release();
+                backpressure.onClosed();
+                channel.close();
+                return false;
+            }
+            if (backpressure.isDroppable(ltMessage.type)) {
+                ltMessage.release();
+                backpressure.onDropped();
+                return false;
+            }
         }
+        channel.write(ltMessage);
+        return true;
     }
 
     @Override
@@ -92,24 +236,94 @@ public class Connection extends ChannelInboundHandlerAdapter {
         //使用channel.write()才能正确传递给我们设置的Protocol和LtCodec
         status = Status.Connected;
         channel = ctx.channel();
+        if (channel.remoteAddress() instanceof InetSocketAddress address) {
+            remoteAddress = address.getAddress();
+        }
         messageDispatcher.onConnectionActive(this);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
         status = Status.Closed;
+        if (slow) {
+            slow = false;
+            backpressure.onRecovered();
+        }
         messageDispatcher.onConnectionClosed(this);
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        reading = true;
         LtMessage message = (LtMessage) msg;
+        if (rateLimiter != null && rateLimiter.isLimited(message.type)) {
+            if (rateLimitBuckets == null) {
+                rateLimitBuckets = rateLimiter.newConnectionBuckets();
+            }
+            if (!rateLimiter.tryAcquire(message.type, rateLimitBuckets, remoteAddress)) {
+                log.debug("Connection {} from {} exceeds rate limit of message({})", ID, remoteAddress, message.type);
+                message.release();
+                return;
+            }
+        }
         Callable<Void> task = messageDispatcher.generateDispatchTask(this, message);
-        if (hasFlyingTask) {
-            pendingTasks.add(task);
-        } else {
-            messageDispatcher.submitDispatchTask(task);
+        if (task == null) {
+            message.release();
+            return;
+        }
+        Mailbox m = mailbox;
+        if ((m == null || m.isIdle()) && messageDispatcher.isInline(message.type)) {
+            // 信箱空着才能插队，否则会跑到前面还没处理完的消息之前
+            try {
+                task.call();
+            } catch (Exception e) {
+                log.warn("Inline handler for message({}) failed: {}", message.type, e.toString());
+            }
+            return;
         }
+        if (!mailbox().offer(task)) {
+            // 处理速度跟不上对端发送速度，继续收下去只会把内存撑爆
+            log.warn("Connection {} mailbox full({}), closing", ID, mailbox.getStats().depth());
+            message.release();
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        reading = false;
+        if (flushPending) {
+            flushPending = false;
+            channel.flush();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (backpressure != null) {
+            boolean writable = ctx.channel().isWritable();
+            if (!writable && !slow) {
+                slow = true;
+                backpressure.onSlow();
+                log.debug("Connection {} becomes slow consumer, {} bytes pending write", ID, getPendingWriteBytes());
+                switch (backpressure.getPolicy()) {
+                    case PauseRead -> ctx.channel().config().setAutoRead(false);
+                    case Close -> {
+                        backpressure.onClosed();
+                        ctx.close();
+                    }
+                    default -> {}
+                }
+            } else if (writable && slow) {
+                slow = false;
+                backpressure.onRecovered();
+                if (backpressure.getPolicy() == Backpressure.Policy.PauseRead) {
+                    ctx.channel().config().setAutoRead(true);
+                }
+            }
+        }
+        super.channelWritabilityChanged(ctx);
     }
 
     @Override
@@ -118,20 +332,4 @@ public class Connection extends ChannelInboundHandlerAdapter {
         ctx.close();
         messageDispatcher.onConnectionUnexpectedClosed(this);
     }
-
-    public void takeOnePendingTask() {
-        if (!channel.eventLoop().inEventLoop()) {
-            channel.eventLoop().submit((Callable<Void>) () -> {
-                takeOnePendingTask();
-                return null;
-            });
-            return;
-        }
-        Callable<Void> task = pendingTasks.poll();
-        if (task == null) {
-            hasFlyingTask = false;
-            return;
-        }
-        messageDispatcher.submitDispatchTask(task);
-    }
 }
@@ -0,0 +1,137 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SingleThreadEventLoop;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 定期统计一个EventLoopGroup里每个线程的利用率，用来决定boss/worker各开多少线程。
+ * 利用率 = 这段时间里线程用掉的CPU时间 / 墙上时间，等在epoll/select上的时间不算CPU，所以接近100%说明这个线程忙不过来了。
+ */
+@Slf4j
+public class EventLoopMonitor {
+
+    public record LoopStats(String name, double utilisation, int pendingTasks, int registeredChannels) {}
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final String name;
+
+    private final EventLoopGroup group;
+
+    private final List<EventExecutor> executors = new ArrayList<>();
+
+    private final long[] threadIDs;
+
+    private final long[] lastCpuNanos;
+
+    private long lastWallNanos;
+
+    private volatile List<LoopStats> lastStats = List.of();
+
+    private ScheduledFuture<?> future;
+
+    public EventLoopMonitor(String name, EventLoopGroup group) {
+        this.name = name;
+        this.group = group;
+        group.forEach(executors::add);
+        threadIDs = new long[executors.size()];
+        lastCpuNanos = new long[executors.size()];
+    }
+
+    public void start(long intervalSeconds) throws Exception {
+        if (intervalSeconds <= 0 || !threadMXBean.isThreadCpuTimeSupported()) {
+            return;
+        }
+        // 事件循环的线程是懒启动的，提交一个任务既能拿到线程ID，也顺便把线程启动起来
+        for (int i = 0; i < executors.size(); i++) {
+            threadIDs[i] = executors.get(i).submit(() -> Thread.currentThread().getId()).get();
+            lastCpuNanos[i] = threadMXBean.getThreadCpuTime(threadIDs[i]);
+        }
+        lastWallNanos = System.nanoTime();
+        future = group.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    public List<LoopStats> getLastStats() {
+        return lastStats;
+    }
+
+    private void report() {
+        final long now = System.nanoTime();
+        final long wallNanos = Math.max(1, now - lastWallNanos);
+        lastWallNanos = now;
+        List<LoopStats> stats = new ArrayList<>(executors.size());
+        for (int i = 0; i < executors.size(); i++) {
+            final long cpuNanos = threadMXBean.getThreadCpuTime(threadIDs[i]);
+            final double utilisation = cpuNanos < 0 ? -1 : (double) (cpuNanos - lastCpuNanos[i]) / wallNanos;
+            lastCpuNanos[i] = cpuNanos;
+            EventExecutor executor = executors.get(i);
+            final int pendingTasks = executor instanceof SingleThreadEventExecutor e ? e.pendingTasks() : -1;
+            final int channels = executor instanceof SingleThreadEventLoop l ? l.registeredChannels() : -1;
+            stats.add(new LoopStats(name + "-" + i, utilisation, pendingTasks, channels));
+            log.debug("Event loop {}-{}: utilisation {}%, pending tasks {}, channels {}",
+                    name, i, String.format("%.1f", utilisation * 100), pendingTasks, channels);
+        }
+        lastStats = stats;
+        // 一个group只打一行，平均值看整体够不够，最大值看有没有某个线程被少数几个连接压满
+        double total = 0;
+        double max = 0;
+        int pendingTasks = 0;
+        int channels = 0;
+        for (var stat : stats) {
+            total += stat.utilisation();
+            max = Math.max(max, stat.utilisation());
+            pendingTasks += Math.max(0, stat.pendingTasks());
+            channels += Math.max(0, stat.registeredChannels());
+        }
+        log.info("Event loops {}({} threads): utilisation avg {}% max {}%, pending tasks {}, channels {}",
+                name, stats.size(), String.format("%.1f", total * 100 / Math.max(1, stats.size())),
+                String.format("%.1f", max * 100), pendingTasks, channels);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import io.netty.channel.EventLoopGroup;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 一组boss/worker事件循环，连同它们的EventLoopMonitor。
+ * SocketServer默认自己建一组；同一个进程里有多个监听端口时，也可以建一组传给所有SocketServer共用，
+ * 这时由创建者负责stop()，SocketServer.stop()不会关掉它。
+ */
+@Slf4j
+@Getter
+public class EventLoops {
+
+    // 已经resolve过，是实际使用的transport
+    private final TransportType transport;
+
+    private final EventLoopGroup bossGroup;
+
+    private final EventLoopGroup childGroup;
+
+    private final EventLoopMonitor bossMonitor;
+
+    private final EventLoopMonitor childMonitor;
+
+    // workerThreads为0时用Netty的默认值(CPU核数*2)
+    public EventLoops(String name, TransportType transport, int bossThreads, int workerThreads, int reportInterval) throws Exception {
+        this.transport = transport.resolve();
+        bossGroup = this.transport.newEventLoopGroup(bossThreads);
+        childGroup = this.transport.newEventLoopGroup(workerThreads);
+        bossMonitor = new EventLoopMonitor("boss-" + name, bossGroup);
+        bossMonitor.start(reportInterval);
+        childMonitor = new EventLoopMonitor("worker-" + name, childGroup);
+        childMonitor.start(reportInterval);
+    }
+
+    public static EventLoops fromConfig(String name, SocketConfig config) throws Exception {
+        return new EventLoops(name, config.getTransport(), config.getBossThreads(), config.getWorkerThreads(), config.getEventLoopReportInterval());
+    }
+
+    // shared为false时返回null，每个SocketServer自己建
+    public static EventLoops fromConfig(String name, EventLoopConfig config) throws Exception {
+        if (!config.isShared()) {
+            return null;
+        }
+        final int workerThreads = config.getWorkerThreads() > 0 ? config.getWorkerThreads() : Runtime.getRuntime().availableProcessors();
+        EventLoops eventLoops = new EventLoops(name, config.getTransport(), config.getBossThreads(), workerThreads, config.getEventLoopReportInterval());
+        log.info("Shared event loops initialized with transport {}, {} boss thread(s), {} worker thread(s)",
+                eventLoops.transport, config.getBossThreads(), workerThreads);
+        return eventLoops;
+    }
+
+    public void stop() throws Exception {
+        bossMonitor.stop();
+        childMonitor.stop();
+        bossGroup.shutdownGracefully().sync();
+        childGroup.shutdownGracefully().sync();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 配置里的executor: work-stealing|blocking|virtual，决定MessageDispatcher在哪里跑handler。
+ * handler里会同步访问SQLite，慢的时候work-stealing那几个线程(CPU核数)很容易全被堵住，
+ * blocking是一个线程数更多的固定线程池，virtual是每个任务一个虚拟线程(需要JDK 21)，JDK版本不够时退回blocking。
+ * 不管用哪种，同一条连接的任务都由Mailbox保证顺序。
+ */
+@Slf4j
+public enum ExecutorType {
+
+    WorkStealing,
+    Blocking,
+    Virtual;
+
+    // blockingThreads只对blocking(以及virtual退回blocking时)有效
+    public ExecutorService newExecutor(int blockingThreads) {
+        switch (this) {
+            case Virtual:
+                try {
+                    // 项目还是按Java 17编译的，只能反射拿
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    log.warn("Virtual threads are unavailable on Java {}, fallback to blocking executor", Runtime.version().feature());
+                }
+                // fallthrough
+            case Blocking:
+                return Executors.newFixedThreadPool(blockingThreads, new DefaultThreadFactory("dispatcher", true));
+            default:
+                return Executors.newWorkStealingPool();
+        }
+    }
+}
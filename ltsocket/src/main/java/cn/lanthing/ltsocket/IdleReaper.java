@@ -0,0 +1,140 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 关掉超过readIdleTimeout秒没收到任何数据的连接。睡眠的笔记本、NAT超时都会留下半开的TCP连接，
+ * 服务端不主动关的话，对应的session、订单和Netty的缓冲区会一直占着。
+ * 超时检查放在一个所有监听端口共用的时间轮上，不占EventLoop的定时任务队列；关连接走正常的close，所以会触发Closed事件。
+ */
+@Slf4j
+public class IdleReaper {
+
+    public enum Reason {
+        // 连上之后一个字节都没发过
+        NoMessage,
+        // 发过消息，后来不说话了
+        ReadIdle,
+    }
+
+    private static final HashedWheelTimer kTimer = new HashedWheelTimer(new DefaultThreadFactory("idle-reaper", true), 500, TimeUnit.MILLISECONDS, 512);
+
+    private final long timeoutNanos;
+
+    private final LongAdder[] reaped = new LongAdder[Reason.values().length];
+
+    public IdleReaper(int readIdleTimeoutSeconds) {
+        timeoutNanos = TimeUnit.SECONDS.toNanos(readIdleTimeoutSeconds);
+        for (int i = 0; i < reaped.length; i++) {
+            reaped[i] = new LongAdder();
+        }
+    }
+
+    // 每条连接一个，要加在pipeline里解码之前
+    public ChannelHandler newHandler() {
+        return new Handler();
+    }
+
+    public Map<Reason, Long> getStats() {
+        Map<Reason, Long> stats = new EnumMap<>(Reason.class);
+        for (Reason reason : Reason.values()) {
+            stats.put(reason, reaped[reason.ordinal()].sum());
+        }
+        return stats;
+    }
+
+    private class Handler extends ChannelInboundHandlerAdapter implements TimerTask {
+
+        private ChannelHandlerContext ctx;
+
+        private volatile long lastReadNanos;
+
+        private volatile boolean hasRead = false;
+
+        private volatile Timeout timeout;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            this.ctx = ctx;
+            lastReadNanos = System.nanoTime();
+            timeout = kTimer.newTimeout(this, timeoutNanos, TimeUnit.NANOSECONDS);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            lastReadNanos = System.nanoTime();
+            hasRead = true;
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+            super.channelInactive(ctx);
+        }
+
+        // 在时间轮线程上执行
+        @Override
+        public void run(Timeout t) {
+            if (!ctx.channel().isActive()) {
+                return;
+            }
+            long idleNanos = System.nanoTime() - lastReadNanos;
+            if (idleNanos < timeoutNanos) {
+                timeout = kTimer.newTimeout(this, timeoutNanos - idleNanos, TimeUnit.NANOSECONDS);
+                return;
+            }
+            Reason reason = hasRead ? Reason.ReadIdle : Reason.NoMessage;
+            reaped[reason.ordinal()].increment();
+            log.debug("Closing idle connection {}: {} for {}ms", ctx.channel().remoteAddress(), reason, TimeUnit.NANOSECONDS.toMillis(idleNanos));
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 和HdrHistogram一样的log-linear分桶：小于kLinear纳秒的每个值一个桶，之后每个2的幂区间再均分成kSubBuckets个桶，
+ * 相对误差不超过1/kSubBuckets。记录只是一次下标计算加几次原子加，不加锁，可以一直开着。
+ * 读到的分位数是桶的上界，记录和读取同时进行时快照不是严格一致的，用来看趋势足够了。
+ */
+public class LatencyHistogram {
+
+    public record Snapshot(long count, long meanMicros, long p50Micros, long p90Micros, long p99Micros, long p999Micros, long maxMicros) {}
+
+    private static final int kSubBucketBits = 3;
+
+    private static final int kSubBuckets = 1 << kSubBucketBits;
+
+    private static final int kLinear = kSubBuckets * 2;
+
+    // 最大能区分到2^63纳秒，用不完，但只多几百个long
+    private static final int kBucketCount = kLinear + (63 - kSubBucketBits) * kSubBuckets;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(kBucketCount);
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(indexOf(nanos));
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[kBucketCount];
+        long total = 0;
+        for (int i = 0; i < kBucketCount; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        final long maxNanos = max.get();
+        return new Snapshot(total,
+                total == 0 ? 0 : sum.sum() / total / 1000,
+                percentile(counts, total, 0.5, maxNanos),
+                percentile(counts, total, 0.9, maxNanos),
+                percentile(counts, total, 0.99, maxNanos),
+                percentile(counts, total, 0.999, maxNanos),
+                maxNanos / 1000);
+    }
+
+    static int indexOf(long nanos) {
+        if (nanos < kLinear) {
+            return (int) nanos;
+        }
+        final int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        final int sub = (int) (nanos >>> (msb - kSubBucketBits)) & (kSubBuckets - 1);
+        return kLinear + (msb - kSubBucketBits - 1) * kSubBuckets + sub;
+    }
+
+    // 下标对应的桶里最大的值
+    static long upperBoundOf(int index) {
+        if (index < kLinear) {
+            return index;
+        }
+        final int msb = (index - kLinear) / kSubBuckets + kSubBucketBits + 1;
+        final long sub = (index - kLinear) % kSubBuckets;
+        final long lower = (1L << msb) | (sub << (msb - kSubBucketBits));
+        return lower + (1L << (msb - kSubBucketBits)) - 1;
+    }
+
+    // 桶上界可能比实际最大值大，用max截一下
+    private static long percentile(long[] counts, long total, double p, long maxNanos) {
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), maxNanos) / 1000;
+            }
+        }
+        return maxNanos / 1000;
+    }
+}
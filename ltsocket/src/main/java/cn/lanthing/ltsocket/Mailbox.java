@@ -0,0 +1,161 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 每条连接一个的串行信箱：同一条连接的任务严格按入队顺序执行，任意时刻最多只有一个在共享线程池里跑。
+ * 每次调度只执行一个任务，还有剩下的就重新投递到线程池队尾，这样几千条连接共用一个线程池时，
+ * 某条连接消息再多也只能轮流占用线程，不会饿死其他连接。
+ */
+@Slf4j
+public class Mailbox implements Runnable {
+
+    public record Stats(int depth, int maxDepth, long processed, long avgWaitMicros, long maxWaitMicros) {}
+
+    private record Entry(Callable<Void> task, long enqueueNanos) {}
+
+    private final Executor executor;
+
+    private final int capacity;
+
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+
+    // 每条连接都有一个信箱，用字段更新器代替AtomicInteger/AtomicBoolean，省掉两个对象
+    private static final AtomicIntegerFieldUpdater<Mailbox> kDepth = AtomicIntegerFieldUpdater.newUpdater(Mailbox.class, "depth");
+
+    private static final AtomicIntegerFieldUpdater<Mailbox> kScheduled = AtomicIntegerFieldUpdater.newUpdater(Mailbox.class, "scheduled");
+
+    private volatile int depth = 0;
+
+    // 0或1
+    private volatile int scheduled = 0;
+
+    // 下面几个统计值只会在持有scheduled的线程里写，scheduled的CAS保证了先后可见，volatile是给读统计的线程用的
+    private volatile int maxDepth = 0;
+
+    private volatile long processed = 0;
+
+    private volatile long totalWaitNanos = 0;
+
+    private volatile long maxWaitNanos = 0;
+
+    public Mailbox(Executor executor, int capacity) {
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * 投递一个任务，信箱满了返回false，由调用者决定怎么处理
+     */
+    public boolean offer(Callable<Void> task) {
+        if (kDepth.incrementAndGet(this) > capacity && capacity > 0) {
+            kDepth.decrementAndGet(this);
+            return false;
+        }
+        enqueue(task);
+        return true;
+    }
+
+    /**
+     * 不受容量限制的投递，给连接断开这类不能丢的事件用
+     */
+    public void forceOffer(Callable<Void> task) {
+        kDepth.incrementAndGet(this);
+        enqueue(task);
+    }
+
+    // 没有排队的任务，也没有正在执行的任务
+    public boolean isIdle() {
+        return depth == 0 && scheduled == 0;
+    }
+
+    public Stats getStats() {
+        long n = processed;
+        return new Stats(depth, maxDepth, n, n == 0 ? 0 : totalWaitNanos / n / 1000, maxWaitNanos / 1000);
+    }
+
+    @Override
+    public void run() {
+        try {
+            Entry entry = queue.poll();
+            if (entry != null) {
+                int d = kDepth.getAndDecrement(this);
+                if (d > maxDepth) {
+                    maxDepth = d;
+                }
+                long waitNanos = System.nanoTime() - entry.enqueueNanos;
+                processed = processed + 1;
+                totalWaitNanos = totalWaitNanos + waitNanos;
+                if (waitNanos > maxWaitNanos) {
+                    maxWaitNanos = waitNanos;
+                }
+                entry.task.call();
+            }
+        } catch (Throwable e) {
+            // 包括StackOverflowError、OOM这类Error，一个任务出错不能影响这条连接后面的任务
+            log.warn("Mailbox task failed: {}", e.toString());
+        } finally {
+            // scheduled不清零的话，之后的offer只会入队，再也没有人来取
+            scheduled = 0;
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    private void enqueue(Callable<Void> task) {
+        queue.add(new Entry(task, System.nanoTime()));
+        schedule();
+    }
+
+    private void schedule() {
+        if (!kScheduled.compareAndSet(this, 0, 1)) {
+            return;
+        }
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            // 线程池已经关了，进程在退出，剩下的任务不要了
+            scheduled = 0;
+            log.warn("Mailbox executor rejected task: {}", e.toString());
+        }
+    }
+}
@@ -31,31 +31,76 @@
 
 package cn.lanthing.ltsocket;
 
+import cn.lanthing.codec.FrameCache;
 import cn.lanthing.codec.LtMessage;
+import cn.lanthing.codec.MessageRegistry;
 import com.google.protobuf.Message;
+import io.netty.channel.EventLoop;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.function.LongPredicate;
 
 
 @Slf4j
 public class MessageDispatcher {
-    record GeneralHandler(Method method, Object object) {}
+    // 启动时用LambdaMetafactory为每个handler生成这两个接口的实现，分发时不再走Method.invoke，connectionID也不用装箱
+    @FunctionalInterface
+    public interface MessageInvoker {
+        LtMessage invoke(long connectionID, Object message) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface EventInvoker {
+        void invoke(long connectionID) throws Exception;
+    }
+
+    // raw为true表示handler的第二个参数是LtMessage，inline为true表示在EventLoop上直接执行
+    record MessageHandler(MessageInvoker invoker, boolean raw, boolean inline, MessageMetrics metrics) {}
+
+    private final ExecutorService executorService;
 
-    private final ExecutorService executorService = Executors.newWorkStealingPool();
+    // 没配置限速时是null
+    private final RateLimiter rateLimiter;
 
     private final ConcurrentMap<Long, Connection> connections = new ConcurrentHashMap<>();
 
-    private final Map<Long, GeneralHandler> messageHandlers = new HashMap<>();
+    // 消息类型ID直接当下标
+    private MessageHandler[] messageHandlers = new MessageHandler[0];
 
-    private final Map<ConnectionEventType, GeneralHandler> sessionEventHandlers = new HashMap<>();
+    // 第二个参数是LtMessage的handler，拿到的是没解析的原始消息，要不要解析由handler自己决定
+    private final Set<Long> rawMessageTypes = new HashSet<>();
+
+    // ConnectionEventType.ordinal()当下标
+    private final EventInvoker[] sessionEventHandlers = new EventInvoker[ConnectionEventType.values().length];
 
     public MessageDispatcher(Class<?> controllerClass, ApplicationContext applicationContext) throws Exception {
+        this(controllerClass, applicationContext, ExecutorType.WorkStealing, 0, null);
+    }
+
+    public MessageDispatcher(Class<?> controllerClass, ApplicationContext applicationContext, SocketConfig config) throws Exception {
+        this(controllerClass, applicationContext, config.getExecutor(), config.getBlockingExecutorThreads(), RateLimiter.fromConfig(config));
+    }
+
+    public MessageDispatcher(Class<?> controllerClass, ApplicationContext applicationContext, ExecutorType executorType, int blockingThreads) throws Exception {
+        this(controllerClass, applicationContext, executorType, blockingThreads, null);
+    }
+
+    public MessageDispatcher(Class<?> controllerClass, ApplicationContext applicationContext, ExecutorType executorType, int blockingThreads, RateLimiter rateLimiter) throws Exception {
+        executorService = executorType.newExecutor(blockingThreads);
+        this.rateLimiter = rateLimiter;
         init(controllerClass, applicationContext);
 }
 private void init(Class<?> controller, ApplicationContext applicationContext) throws Exception {
@@ -65,6 +110,7 @@ private void init(Class<?> controller, ApplicationContext applicationContext) th
     } catch (BeansException be) {
         return;
     }
+    Map<Long, MessageHandler> handlers = new HashMap<>();
     var methods = controller.getMethods();
     for (var method : methods) {
         var annotations = method.getAnnotations();
@@ -78,9 +124,15 @@ private void init(Class<?> controller, ApplicationContext applicationContext) th
                     throw new Exception("Wrong usage of @MessageMapping");
                 }
                 MessageMapping messageMapping = method.getAnnotation(MessageMapping.class);
-                if (paramsType[0].getName().equals("long") && Message.class.isAssignableFrom(paramsType[1])) {
-                    messageHandlers.put(messageMapping.proto().ID, new GeneralHandler(method, controllerObject));
-                    log.info("Mapping message({}) to handler {}", messageMapping.proto().ID, method.getName());
+                if (paramsType[0].getName().equals("long") && (Message.class.isAssignableFrom(paramsType[1]) || paramsType[1] == LtMessage.class)) {
+                    if (messageMapping.proto().ID < 0 || messageMapping.proto().ID > MessageRegistry.kMaxTypeID) {
+                        throw new Exception("Message type ID out of range: " + messageMapping.proto().ID);
+                    }
+                    handlers.put(messageMapping.proto().ID, new MessageHandler(messageInvoker(method, controllerObject), paramsType[1] == LtMessage.class, messageMapping.inline(), new MessageMetrics()));
+                    if (paramsType[1] == LtMessage.class) {
+                        rawMessageTypes.add(messageMapping.proto().ID);
+                    }
+                    log.info("Mapping message({}) to handler {}{}", messageMapping.proto().ID, method.getName(), messageMapping.inline() ? " (inline)" : "");
                 } else {
                     throw new Exception("Wrong usage of @MessageMapping");
                 }
@@ -94,22 +146,22 @@ private void init(Class<?> controller, ApplicationContext applicationContext) th
                     boolean added = true;
                     switch (connectionEvent.type()) {
                         case Closed:
-                            if (sessionEventHandlers.containsKey(ConnectionEventType.Closed)) {
+                            if (sessionEventHandlers[ConnectionEventType.Closed.ordinal()] != null) {
                                 throw new Exception("Duplicated handler " + ConnectionEventType.Closed);
                             }
-                            sessionEventHandlers.put(ConnectionEventType.Closed, new GeneralHandler(method, controllerObject));
+                            sessionEventHandlers[ConnectionEventType.Closed.ordinal()] = eventInvoker(method, controllerObject);
                             break;
                         case UnexpectedlyClosed:
-                            if (sessionEventHandlers.containsKey(ConnectionEventType.UnexpectedlyClosed)) {
+                            if (sessionEventHandlers[ConnectionEventType.UnexpectedlyClosed.ordinal()] != null) {
                                 throw new Exception("Duplicated handler " + ConnectionEventType.Closed);
                             }
-                            sessionEventHandlers.put(ConnectionEventType.UnexpectedlyClosed, new GeneralHandler(method, controllerObject));
+                            sessionEventHandlers[ConnectionEventType.UnexpectedlyClosed.ordinal()] = eventInvoker(method, controllerObject);
                             break;
                         case Connected:
-                            if (sessionEventHandlers.containsKey(ConnectionEventType.Connected)) {
+                            if (sessionEventHandlers[ConnectionEventType.Connected.ordinal()] != null) {
                                 throw new Exception("Duplicated handler " + ConnectionEventType.Connected);
                             }
-                            sessionEventHandlers.put(ConnectionEventType.Connected, new GeneralHandler(method, controllerObject));
+                            sessionEventHandlers[ConnectionEventType.Connected.ordinal()] = eventInvoker(method, controllerObject);
                             break;
                         default:
                             added = false;
@@ -124,32 +176,140 @@ private void init(Class<?> controller, ApplicationContext applicationContext) th
             }
         }
     }
+    long maxID = handlers.keySet().stream().mapToLong(Long::longValue).max().orElse(-1);
+    messageHandlers = new MessageHandler[(int) (maxID + 1)];
+    handlers.forEach((id, handler) -> messageHandlers[id.intValue()] = handler);
 }
 
+    private static MessageInvoker messageInvoker(Method method, Object controller) throws Exception {
+        var lookup = MethodHandles.privateLookupIn(method.getDeclaringClass(), MethodHandles.lookup());
+        var target = lookup.unreflect(method);
+        var site = LambdaMetafactory.metafactory(lookup, "invoke",
+                MethodType.methodType(MessageInvoker.class, method.getDeclaringClass()),
+                MethodType.methodType(LtMessage.class, long.class, Object.class),
+                target,
+                MethodType.methodType(LtMessage.class, long.class, method.getParameterTypes()[1]));
+        try {
+            return (MessageInvoker) site.getTarget().invoke(controller);
+        } catch (Throwable e) {
+            throw new Exception("Generate invoker for " + method.getName() + " failed: " + e);
+        }
+    }
+
+    private static EventInvoker eventInvoker(Method method, Object controller) throws Exception {
+        var lookup = MethodHandles.privateLookupIn(method.getDeclaringClass(), MethodHandles.lookup());
+        var target = lookup.unreflect(method);
+        var site = LambdaMetafactory.metafactory(lookup, "invoke",
+                MethodType.methodType(EventInvoker.class, method.getDeclaringClass()),
+                MethodType.methodType(void.class, long.class),
+                target,
+                MethodType.methodType(void.class, long.class));
+        try {
+            return (EventInvoker) site.getTarget().invoke(controller);
+        } catch (Throwable e) {
+            throw new Exception("Generate invoker for " + method.getName() + " failed: " + e);
+        }
+    }
+
+    public Set<Long> getRawMessageTypes() {
+        return rawMessageTypes;
+    }
+
+    public boolean isInline(long type) {
+        var handler = type >= 0 && type < messageHandlers.length ? messageHandlers[(int) type] : null;
+        return handler != null && handler.inline;
+    }
+
     public Callable<Void> generateDispatchTask(Connection connection, LtMessage ltMessage) {
-        Callable<Void> handlerTask = generateHandlerTask(connection, ltMessage);
-        if (handlerTask == null) {
-            return null;
+        return generateHandlerTask(connection, ltMessage);
+    }
+
+    // SSL和非SSL端口的连接共用一个，同一个IP连两个端口也算在一起
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public Mailbox newMailbox(int capacity) {
+        return new Mailbox(executorService, capacity);
+    }
+
+    public Map<Long, Mailbox.Stats> getMailboxStats() {
+        Map<Long, Mailbox.Stats> stats = new HashMap<>();
+        connections.forEach((id, conn) -> stats.put(id, conn.getMailboxStats()));
+        return stats;
+    }
+
+    // 所有连接信箱的汇总：当前排队总数、单个信箱出现过的最大深度、处理总数、平均/最大排队时间
+    public record MailboxSummary(int connections, long depth, int maxDepth, long processed, long avgWaitMicros, long maxWaitMicros) {}
+
+    public MailboxSummary getMailboxSummary() {
+        int count = 0;
+        long depth = 0;
+        int maxDepth = 0;
+        long processed = 0;
+        long totalWaitMicros = 0;
+        long maxWaitMicros = 0;
+        for (Connection conn : connections.values()) {
+            var stats = conn.getMailboxStats();
+            count++;
+            depth += stats.depth();
+            maxDepth = Math.max(maxDepth, stats.maxDepth());
+            processed += stats.processed();
+            totalWaitMicros += stats.avgWaitMicros() * stats.processed();
+            maxWaitMicros = Math.max(maxWaitMicros, stats.maxWaitMicros());
         }
-        return () -> {
-            handlerTask.call();
-            connection.takeOnePendingTask();
-            return null;
-        };
+        return new MailboxSummary(count, depth, maxDepth, processed, processed == 0 ? 0 : totalWaitMicros / processed, maxWaitMicros);
+    }
+
+    // 每条连接还没写出去的字节数
+    public Map<Long, Long> getPendingWriteBytes() {
+        Map<Long, Long> stats = new HashMap<>();
+        connections.forEach((id, conn) -> stats.put(id, conn.getPendingWriteBytes()));
+        return stats;
+    }
+
+    // 出站缓冲区的汇总：有积压的连接数、积压总字节数，以及积压最多的那条连接
+    public record PendingWriteSummary(int connections, long totalBytes, long maxBytes, long maxConnectionID) {}
+
+    public PendingWriteSummary getPendingWriteSummary() {
+        int count = 0;
+        long total = 0;
+        long max = 0;
+        long maxID = 0;
+        for (Connection conn : connections.values()) {
+            long bytes = conn.getPendingWriteBytes();
+            if (bytes == 0) {
+                continue;
+            }
+            count++;
+            total += bytes;
+            if (bytes > max) {
+                max = bytes;
+                maxID = conn.ID;
+            }
+        }
+        return new PendingWriteSummary(count, total, max, maxID);
     }
 
-    public void submitDispatchTask(Callable<Void> task) {
-        executorService.submit(task);
+    // 每种消息类型的排队、执行耗时和速率
+    public Map<Long, MessageMetrics.Snapshot> getMessageMetrics() {
+        Map<Long, MessageMetrics.Snapshot> stats = new HashMap<>();
+        for (int i = 0; i < messageHandlers.length; i++) {
+            if (messageHandlers[i] != null) {
+                stats.put((long) i, messageHandlers[i].metrics.snapshot());
+            }
+        }
+        return stats;
     }
 
     public void onConnectionActive(Connection connection) {
         log.debug("Connection {} accepted", connection.ID);
         connections.put(connection.ID, connection);
-        var handler = sessionEventHandlers.get(ConnectionEventType.Connected);
+        var handler = sessionEventHandlers[ConnectionEventType.Connected.ordinal()];
         if (handler != null) {
-            submitDispatchTask(()->{
+            connection.submitToMailbox(()->{
                 try {
-                    handler.method.invoke(handler.object, connection.ID);
+                    handler.invoke(connection.ID);
                 }  catch (Exception e) {
                     log.warn("Handle Connection Connected error: {}", e.toString());
                 }
@@ -161,11 +321,11 @@ private void init(Class<?> controller, ApplicationContext applicationContext) th
     public void onConnectionClosed(Connection connection) {
         log.debug("Connection {} closed", connection.ID);
         connections.remove(connection.ID);
-        var handler = sessionEventHandlers.get(ConnectionEventType.Closed);
+        var handler = sessionEventHandlers[ConnectionEventType.Closed.ordinal()];
         if (handler != null) {
-            submitDispatchTask(()->{
+            connection.submitToMailbox(()->{
                 try {
-                    handler.method.invoke(handler.object, connection.ID);
+                    handler.invoke(connection.ID);
                 } catch (Exception e) {
                     log.warn("Handle Connection NormalClosed error: {}", e.toString());
                 }
@@ -177,11 +337,11 @@ private void init(Class<?> controller, ApplicationContext applicationContext) th
     public void onConnectionUnexpectedClosed(Connection connection) {
         log.debug("Connection {} close unexpectedly", connection.ID);
         connections.remove(connection.ID);
-        var handler = sessionEventHandlers.get(ConnectionEventType.UnexpectedlyClosed);
+        var handler = sessionEventHandlers[ConnectionEventType.UnexpectedlyClosed.ordinal()];
         if (handler != null) {
-            submitDispatchTask(()->{
+            connection.submitToMailbox(()->{
                 try {
-                    handler.method.invoke(handler.object, connection.ID);
+                    handler.invoke(connection.ID);
                 }  catch (Exception e) {
                     log.warn("Handle Connection UnexpectedClosed error: {}", e.toString());
                 }
@@ -191,13 +351,39 @@ private void init(Class<?> controller, ApplicationContext applicationContext) th
     }
 
     private Callable<Void> generateHandlerTask(Connection connection, LtMessage ltMessage) {
-        var handler = messageHandlers.get(ltMessage.type);
+        var handler = ltMessage.type >= 0 && ltMessage.type < messageHandlers.length ? messageHandlers[(int) ltMessage.type] : null;
         if (handler == null) {
             log.warn("Unknown message type({})", ltMessage.type);
             return null;
         }
+        var invoker = handler.invoker;
+        var metrics = handler.metrics;
+        final long receivedNanos = System.nanoTime();
+        if (handler.raw) {
+            return () -> {
+                LtMessage response;
+                final long start = System.nanoTime();
+                try {
+                    response = invoker.invoke(connection.ID, ltMessage);
+                } finally {
+                    metrics.record(receivedNanos, start, System.nanoTime());
+                    // handler要转发的话自己retain()
+                    ltMessage.release();
+                }
+                if (response != null) {
+                    connection.send(response);
+                }
+                return null;
+            };
+        }
         return () -> {
-            var response = (LtMessage)handler.method.invoke(handler.object, connection.ID, ltMessage.protoMsg);
+            LtMessage response;
+            final long start = System.nanoTime();
+            try {
+                response = invoker.invoke(connection.ID, ltMessage.protoMsg);
+            } finally {
+                metrics.record(receivedNanos, start, System.nanoTime());
+            }
             if (response != null) {
                 connection.send(response);
             }
@@ -205,17 +391,85 @@ private void init(Class<?> controller, ApplicationContext applicationContext) th
         };
     }
 
+    // 把同一条消息发给filter选中的所有连接(filter为null表示全部)，返回发出的连接数。可以在任意线程调用。
+    // protobuf只序列化一次，放进池化内存，每个连接写的是共享payload的retainedDuplicate；
+    // 目标连接按EventLoop分组，每个EventLoop只投递一个入队任务和一个flush任务，不是每条连接一个
+    public int broadcast(long type, Message message, LongPredicate filter) {
+        Map<EventLoop, List<Connection>> groups = groupByEventLoop(filter);
+        if (groups.isEmpty()) {
+            return 0;
+        }
+        LtMessage shared = FrameCache.encodeShared(groups.values().iterator().next().get(0).alloc(), type, message);
+        try {
+            return broadcast(shared, groups);
+        } finally {
+            shared.release();
+        }
+    }
+
+    // 和上面一样，但消息已经由FrameCache编码好(比如VersionService缓存的NewVersion)，这里不再序列化。
+    // 每个目标连接retain()一次，调用方持有的引用还是由调用方release()
+    public int broadcast(LtMessage ltMessage, LongPredicate filter) {
+        Map<EventLoop, List<Connection>> groups = groupByEventLoop(filter);
+        if (groups.isEmpty()) {
+            return 0;
+        }
+        return broadcast(ltMessage, groups);
+    }
+
+    private Map<EventLoop, List<Connection>> groupByEventLoop(LongPredicate filter) {
+        Map<EventLoop, List<Connection>> groups = new HashMap<>();
+        for (Connection conn : connections.values()) {
+            if (filter != null && !filter.test(conn.ID)) {
+                continue;
+            }
+            groups.computeIfAbsent(conn.eventLoop(), k -> new ArrayList<>()).add(conn);
+        }
+        return groups;
+    }
+
+    private int broadcast(LtMessage shared, Map<EventLoop, List<Connection>> groups) {
+        int count = 0;
+        for (List<Connection> targets : groups.values()) {
+            count += targets.size();
+        }
+        // 每个目标连接一个引用，写完或者被丢弃时由LtCodec/Backpressure释放
+        shared.retain(count);
+        for (var entry : groups.entrySet()) {
+            final EventLoop eventLoop = entry.getKey();
+            final List<Connection> targets = entry.getValue();
+            try {
+                eventLoop.execute(() -> {
+                    List<Connection> toFlush = new ArrayList<>(targets.size());
+                    for (Connection conn : targets) {
+                        if (conn.enqueueOnEventLoop(shared)) {
+                            toFlush.add(conn);
+                        }
+                    }
+                    // flush单独排在后面，连续几次群发的话前面已经排队的群发任务会先入队，每条连接只flush一次
+                    if (!toFlush.isEmpty()) {
+                        eventLoop.execute(() -> toFlush.forEach(Connection::flushOutbound));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // EventLoop已经关闭
+                shared.release(targets.size());
+                count -= targets.size();
+            }
+        }
+        log.info("Broadcast message({}) to {} connection(s) on {} event loop(s)", shared.type, count, groups.size());
+        return count;
+    }
+
     public void send(long connectionID, LtMessage ltMessage) {
         if (ltMessage == null) {
             return;
         }
         Connection conn = connections.get(connectionID);
         if (conn == null) {
+            ltMessage.release();
             return;
         }
-        conn.submitTaskToExecutor(() -> {
-            conn.send(ltMessage);
-            return null;
-        });
+        conn.send(ltMessage);
     }
 }
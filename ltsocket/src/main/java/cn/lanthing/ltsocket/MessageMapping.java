@@ -42,4 +42,8 @@ import java.lang.annotation.Target;
 @Target(ElementType.METHOD)
 public @interface MessageMapping {
     LtProto proto();
+
+    // 为true时handler直接在Netty的EventLoop上执行，不进线程池。
+    // 只能给不做IO、不拿锁、不依赖连接上其他消息处理顺序的handler用，比如KeepAlive
+    boolean inline() default false;
 }
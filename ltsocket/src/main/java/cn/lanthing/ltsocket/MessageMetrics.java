@@ -0,0 +1,65 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+/**
+ * 一种消息类型的统计：从EventLoop收到到handler开始执行的排队时间、handler执行时间，以及处理速率。
+ * 速率按两次snapshot()之间处理的条数计算。
+ */
+public class MessageMetrics {
+
+    public record Snapshot(long count, long messagesPerSecond, LatencyHistogram.Snapshot queueWait, LatencyHistogram.Snapshot handle) {}
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    private final LatencyHistogram handle = new LatencyHistogram();
+
+    private long lastCount = 0;
+
+    private long lastSnapshotNanos = System.nanoTime();
+
+    public void record(long receivedNanos, long startNanos, long endNanos) {
+        queueWait.record(startNanos - receivedNanos);
+        handle.record(endNanos - startNanos);
+    }
+
+    public synchronized Snapshot snapshot() {
+        var wait = queueWait.snapshot();
+        var exec = handle.snapshot();
+        final long now = System.nanoTime();
+        final long elapsed = now - lastSnapshotNanos;
+        final long rate = elapsed > 0 ? (exec.count() - lastCount) * 1_000_000_000L / elapsed : 0;
+        lastCount = exec.count();
+        lastSnapshotNanos = now;
+        return new Snapshot(exec.count(), rate, wait, exec);
+    }
+}
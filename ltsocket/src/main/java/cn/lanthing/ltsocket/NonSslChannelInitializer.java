@@ -31,37 +31,60 @@
 
 package cn.lanthing.ltsocket;
 
+import cn.lanthing.codec.CodecStats;
 import cn.lanthing.codec.LtCodec;
+import cn.lanthing.codec.MessageRegistry;
 import cn.lanthing.codec.Protocol;
-import cn.lanthing.ltproto.LtProto;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
-
-import java.util.ArrayList;
-import java.util.List;
+import lombok.Getter;
 
 public class NonSslChannelInitializer extends ChannelInitializer<Channel> {
 
     private MessageDispatcher messageDispatcher;
 
-    public NonSslChannelInitializer(MessageDispatcher messageDispatcher) throws Exception {
-        this.messageDispatcher = messageDispatcher;
-        init();
+    private final SocketConfig socketConfig;
+
+    private final MessageRegistry messageRegistry;
+
+    @Getter
+    private final CodecStats codecStats;
+
+    // readIdleTimeout为0时是null
+    @Getter
+    private final IdleReaper idleReaper;
+
+    @Getter
+    private final Backpressure backpressure;
+
+    // @Sharable，所有连接共用
+    private final LtCodec ltCodec;
+
+    public NonSslChannelInitializer(SocketConfig socketConfig, MessageDispatcher messageDispatcher) throws Exception {
+        this(socketConfig, messageDispatcher, MessageRegistry.fromLtProto());
     }
 
-    public void init() throws Exception {
-        List<LtCodec.MsgType> msgTypes = new ArrayList<>();
-        for (var msgType : LtProto.values()) {
-            msgTypes.add(new LtCodec.MsgType(msgType.ID, msgType.className));
+    public NonSslChannelInitializer(SocketConfig socketConfig, MessageDispatcher messageDispatcher, MessageRegistry messageRegistry) {
+        this.socketConfig = socketConfig;
+        this.messageDispatcher = messageDispatcher;
+        this.messageRegistry = messageRegistry;
+        this.idleReaper = socketConfig.getReadIdleTimeout() > 0 ? new IdleReaper(socketConfig.getReadIdleTimeout()) : null;
+        this.backpressure = Backpressure.fromConfig(socketConfig);
+        for (long type : messageDispatcher.getRawMessageTypes()) {
+            messageRegistry.setLazy(type);
         }
-        LtCodec.initialize(msgTypes);
+        this.codecStats = new CodecStats(messageRegistry.getMaxTypeID());
+        this.ltCodec = new LtCodec(messageRegistry, socketConfig.getCompressThreshold(), codecStats);
     }
 
     @Override
     protected void initChannel(Channel ch) {
-        ch.pipeline().addLast("protocol", new Protocol());
-        ch.pipeline().addLast("message", new LtCodec());
-        Connection connection = new Connection(messageDispatcher);
+        if (idleReaper != null) {
+            ch.pipeline().addLast("idle", idleReaper.newHandler());
+        }
+        ch.pipeline().addLast("protocol", new Protocol(socketConfig.isEnableChecksum()));
+        ch.pipeline().addLast("message", ltCodec);
+        Connection connection = new Connection(messageDispatcher, socketConfig.getMailboxCapacity(), backpressure);
         ch.pipeline().addLast("connection", connection);
     }
 
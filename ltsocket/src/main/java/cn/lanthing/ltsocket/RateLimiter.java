@@ -0,0 +1,240 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import cn.lanthing.ltproto.LtProto;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按消息类型限速，每条连接一组令牌桶，每个对端IP一组令牌桶，两边都拿到令牌才放行。
+ * 检查在EventLoop上做，超限的消息直接丢掉，不会进信箱，也就到不了handler和数据库。
+ * 一个监听端口一个(SSL和非SSL共用)，没配置的消息类型不受影响。
+ * IP的桶在连接断开后还保留着，不然断开重连就能绕过；桶攒满(也就是一段时间没用)之后才会被清掉。
+ */
+@Slf4j
+public class RateLimiter {
+
+    public record Stats(long passed, long rejectedByConnection, long rejectedByIP) {}
+
+    private static final long kSweepIntervalNanos = TimeUnit.MINUTES.toNanos(1);
+
+    // 令牌桶，只用一个long记录"桶变空的时刻"，CAS更新，不加锁
+    static final class Bucket {
+
+        private final AtomicLong emptyAtNanos;
+
+        private Bucket(long now) {
+            emptyAtNanos = new AtomicLong(now);
+        }
+
+        boolean tryAcquire(Limit limit, long now) {
+            while (true) {
+                final long emptyAt = emptyAtNanos.get();
+                final long next = Math.max(emptyAt, now) + limit.intervalNanos;
+                if (next - now > limit.capacityNanos) {
+                    return false;
+                }
+                if (emptyAtNanos.compareAndSet(emptyAt, next)) {
+                    return true;
+                }
+            }
+        }
+
+        boolean isFull(long now) {
+            return emptyAtNanos.get() <= now;
+        }
+    }
+
+    // 速率为0的一边不限制
+    private record Limit(long intervalNanos, long capacityNanos) {
+
+        static Limit of(double perSecond, int burst) {
+            if (perSecond <= 0) {
+                return null;
+            }
+            final long interval = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+            return new Limit(interval, interval * Math.max(burst, 1));
+        }
+    }
+
+    // 消息类型ID当下标，没限速的类型是-1
+    private final int[] slotOfType;
+
+    private final long[] typeOfSlot;
+
+    private final Limit[] connectionLimits;
+
+    private final Limit[] ipLimits;
+
+    private final ConcurrentMap<InetAddress, Bucket[]> ipBuckets = new ConcurrentHashMap<>();
+
+    private final LongAdder[] passed;
+
+    private final LongAdder[] rejectedByConnection;
+
+    private final LongAdder[] rejectedByIP;
+
+    private final AtomicBoolean sweeping = new AtomicBoolean(false);
+
+    private volatile long lastSweepNanos = System.nanoTime();
+
+    public RateLimiter(List<SocketConfig.RateLimit> rateLimits) throws Exception {
+        long maxType = -1;
+        for (var rateLimit : rateLimits) {
+            maxType = Math.max(maxType, LtProto.valueOf(rateLimit.getMessage()).ID);
+        }
+        slotOfType = new int[(int) (maxType + 1)];
+        Arrays.fill(slotOfType, -1);
+        final int slots = rateLimits.size();
+        typeOfSlot = new long[slots];
+        connectionLimits = new Limit[slots];
+        ipLimits = new Limit[slots];
+        passed = new LongAdder[slots];
+        rejectedByConnection = new LongAdder[slots];
+        rejectedByIP = new LongAdder[slots];
+        for (int slot = 0; slot < slots; slot++) {
+            var rateLimit = rateLimits.get(slot);
+            final long type = LtProto.valueOf(rateLimit.getMessage()).ID;
+            if (slotOfType[(int) type] != -1) {
+                throw new Exception("Duplicated rate limit for " + rateLimit.getMessage());
+            }
+            slotOfType[(int) type] = slot;
+            typeOfSlot[slot] = type;
+            connectionLimits[slot] = Limit.of(rateLimit.getPerConnection(), rateLimit.getBurst());
+            ipLimits[slot] = Limit.of(rateLimit.getPerIp(), rateLimit.getBurst());
+            passed[slot] = new LongAdder();
+            rejectedByConnection[slot] = new LongAdder();
+            rejectedByIP[slot] = new LongAdder();
+            log.info("Rate limit for {}: {}/s per connection, {}/s per IP, burst {}",
+                    rateLimit.getMessage(), rateLimit.getPerConnection(), rateLimit.getPerIp(), rateLimit.getBurst());
+        }
+    }
+
+    // 没配置任何限速时返回null
+    public static RateLimiter fromConfig(SocketConfig config) throws Exception {
+        if (config.getRateLimits() == null || config.getRateLimits().isEmpty()) {
+            return null;
+        }
+        return new RateLimiter(config.getRateLimits());
+    }
+
+    public Map<Long, Stats> getStats() {
+        Map<Long, Stats> stats = new HashMap<>();
+        for (int slot = 0; slot < typeOfSlot.length; slot++) {
+            stats.put(typeOfSlot[slot], new Stats(passed[slot].sum(), rejectedByConnection[slot].sum(), rejectedByIP[slot].sum()));
+        }
+        return stats;
+    }
+
+    public int getTrackedIPs() {
+        return ipBuckets.size();
+    }
+
+    boolean isLimited(long type) {
+        return type >= 0 && type < slotOfType.length && slotOfType[(int) type] >= 0;
+    }
+
+    // 每条连接一组，只在这条连接的EventLoop上用
+    Bucket[] newConnectionBuckets() {
+        final long now = System.nanoTime();
+        Bucket[] buckets = new Bucket[typeOfSlot.length];
+        for (int slot = 0; slot < buckets.length; slot++) {
+            buckets[slot] = new Bucket(now);
+        }
+        return buckets;
+    }
+
+    boolean tryAcquire(long type, Bucket[] connectionBuckets, InetAddress address) {
+        final int slot = type >= 0 && type < slotOfType.length ? slotOfType[(int) type] : -1;
+        if (slot < 0) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        if (connectionLimits[slot] != null && !connectionBuckets[slot].tryAcquire(connectionLimits[slot], now)) {
+            rejectedByConnection[slot].increment();
+            return false;
+        }
+        if (ipLimits[slot] != null && address != null && !bucketsOf(address, now)[slot].tryAcquire(ipLimits[slot], now)) {
+            rejectedByIP[slot].increment();
+            return false;
+        }
+        passed[slot].increment();
+        return true;
+    }
+
+    private Bucket[] bucketsOf(InetAddress address, long now) {
+        Bucket[] buckets = ipBuckets.get(address);
+        if (buckets != null) {
+            return buckets;
+        }
+        maybeSweep(now);
+        return ipBuckets.computeIfAbsent(address, ignored -> newConnectionBuckets());
+    }
+
+    // 新IP出现时顺便检查一下，最多一分钟清一次，放到EventLoop外面做
+    private void maybeSweep(long now) {
+        if (now - lastSweepNanos < kSweepIntervalNanos || !sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        lastSweepNanos = now;
+        GlobalEventExecutor.INSTANCE.execute(() -> {
+            try {
+                final long sweepNanos = System.nanoTime();
+                final int before = ipBuckets.size();
+                ipBuckets.values().removeIf(buckets -> {
+                    for (Bucket bucket : buckets) {
+                        if (!bucket.isFull(sweepNanos)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+                log.debug("Rate limiter swept {} idle IPs, {} left", before - ipBuckets.size(), ipBuckets.size());
+            } finally {
+                sweeping.set(false);
+            }
+        });
+    }
+}
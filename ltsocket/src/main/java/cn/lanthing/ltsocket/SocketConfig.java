@@ -33,6 +33,8 @@ package cn.lanthing.ltsocket;
 
 import lombok.Data;
 
+import java.util.List;
+
 @Data
 public final class SocketConfig {
 
@@ -50,4 +52,94 @@ public final class SocketConfig {
 
     private String privateKeyFile;
 
+    // jdk|openssl|auto，见SslProviderType
+    private SslProviderType sslProvider = SslProviderType.Auto;
+
+    // 服务端缓存多少个SSL session，断线重连的设备可以复用session，不用再走一遍完整握手
+    private int sslSessionCacheSize = 20480;
+
+    // session(包括session ticket)多少秒后过期
+    private int sslSessionTimeout = 86400;
+
+    // 每隔多少秒检查一次证书和私钥文件，变了就换上新证书，不用重启，0表示不检查
+    private int certReloadInterval = 60;
+
+    // 对端使用v3协议时，回包也带上CRC32C校验和
+    private boolean enableChecksum;
+
+    // 对端支持压缩时，body不小于这个大小的消息用LZ4压缩，<=0表示不压缩
+    private int compressThreshold;
+
+    // nio|epoll|io_uring|auto，native transport不可用时退回nio
+    private TransportType transport = TransportType.Nio;
+
+    // accept只需要一个线程，多开没有意义(除非开了SO_REUSEPORT)
+    private int bossThreads = 1;
+
+    // 只对epoll/io_uring有效：每个boss线程各bind一个设了SO_REUSEPORT的监听socket，由内核把新连接分散到各个线程accept。
+    // 重启后大量设备同时重连时，单个accept线程会成为瓶颈
+    private boolean reusePort = false;
+
+    // 0表示用Netty的默认值：CPU核数*2
+    private int workerThreads = 0;
+
+    // 还受系统的net.core.somaxconn限制，重连风暴时太小会让accept队列溢出
+    private int backlog = 1024;
+
+    private boolean tcpNoDelay = true;
+
+    // SO_RCVBUF/SO_SNDBUF，0表示用系统默认值(系统默认会自动调节，一般不用改)
+    private int receiveBufferSize = 0;
+
+    private int sendBufferSize = 0;
+
+    // 待发送的数据超过high时channel变成不可写，降到low以下才恢复
+    private int writeBufferLowWaterMark = 32 * 1024;
+
+    private int writeBufferHighWaterMark = 64 * 1024;
+
+    // 对端不读数据、channel不可写时怎么处理: drop|pause_read|close，见Backpressure
+    private Backpressure.Policy slowConsumerPolicy = Backpressure.Policy.PauseRead;
+
+    // 单条连接待发送数据的硬上限，超过就断开，0表示不限制
+    private long maxPendingWriteBytes = 4 * 1024 * 1024;
+
+    // drop策略下，不可写时可以丢掉的消息类型(LtProto里的名字)
+    private List<String> droppableMessages = List.of("KeepAliveAck");
+
+    // pooled|unpooled|adaptive
+    private AllocatorType allocator = AllocatorType.Pooled;
+
+    // 超过多少秒没收到任何数据就关掉连接，0表示不检查
+    private int readIdleTimeout = 0;
+
+    // work-stealing|blocking|virtual，handler里有慢IO时用blocking或virtual
+    private ExecutorType executor = ExecutorType.WorkStealing;
+
+    private int blockingExecutorThreads = 64;
+
+    // 每条连接最多积压多少条未处理的消息，超过就断开这条连接，0表示不限制
+    private int mailboxCapacity = 1024;
+
+    // 每隔多少秒打印一次事件循环的利用率，0表示不打印
+    private int eventLoopReportInterval = 60;
+
+    // 按消息类型限速，见RateLimiter
+    private List<RateLimit> rateLimits = List.of();
+
+    @Data
+    public static class RateLimit {
+
+        // LtProto里的名字
+        private String message;
+
+        // 每秒允许多少条，可以是小数，0表示这一边不限制
+        private double perConnection;
+
+        private double perIp;
+
+        // 允许一次性突发多少条
+        private int burst = 1;
+    }
+
 }
@@ -32,9 +32,23 @@
 package cn.lanthing.ltsocket;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.unix.UnixChannelOption;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -46,52 +60,157 @@ import java.net.InetSocketAddress;
 @Setter
 public class SocketServer {
 
+    // 本身没有状态(状态在newHandle()出来的handle里)，所有连接共用一个，不用每条连接new一个
+    private static final AdaptiveRecvByteBufAllocator kRecvByteBufAllocator = new AdaptiveRecvByteBufAllocator();
+
     private SocketConfig config;
 
     private NonSslChannelInitializer nonSslChannelInitializer;
 
     private SslChannelInitializer sslChannelInitializer;
 
-    private NioEventLoopGroup bossGroup;
+    private TransportType transport;
+
+    private EventLoopGroup bossGroup;
+
+    private EventLoopGroup childGroup;
+
+    private EventLoops eventLoops;
+
+    // 自己建的事件循环stop()时关掉，共用的由创建者关
+    private boolean ownsEventLoops;
+
+    // 这个SocketServer bind出来的监听socket和accept进来的连接。事件循环可能是共用的，不会跟着stop()关掉，
+    // 所以stop()要自己把它们关掉。连接关闭时会自动从group里移除
+    private final ChannelGroup channels = new DefaultChannelGroup("socket-server", GlobalEventExecutor.INSTANCE);
 
-    private NioEventLoopGroup childGroup;
+    // 加在监听socket的pipeline上，accept出来的连接交给ServerBootstrap注册之前先记到channels里
+    @ChannelHandler.Sharable
+    private class AcceptedChannelTracker extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            channels.add((Channel) msg);
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    @Getter(AccessLevel.NONE)
+    private final AcceptedChannelTracker acceptedChannelTracker = new AcceptedChannelTracker();
 
     public SocketServer(SocketConfig socketConfig, NonSslChannelInitializer nonSslChannelInitializer, SslChannelInitializer sslChannelInitializer) throws Exception {
+        this(socketConfig, nonSslChannelInitializer, sslChannelInitializer, null);
+    }
+
+    // sharedEventLoops为null时自己按socketConfig建一组
+    public SocketServer(SocketConfig socketConfig, NonSslChannelInitializer nonSslChannelInitializer, SslChannelInitializer sslChannelInitializer, EventLoops sharedEventLoops) throws Exception {
         this.config = socketConfig;
         this.nonSslChannelInitializer = nonSslChannelInitializer;
         this.sslChannelInitializer = sslChannelInitializer;
+        this.eventLoops = sharedEventLoops;
         init();
     }
 
     public void init() throws Exception {
-        bossGroup = new NioEventLoopGroup();
-        childGroup = new NioEventLoopGroup();
+        ownsEventLoops = eventLoops == null;
+        if (ownsEventLoops) {
+            eventLoops = EventLoops.fromConfig(String.valueOf(config.getPort()), config);
+        } else {
+            warnIgnoredEventLoopOptions();
+        }
+        transport = eventLoops.getTransport();
+        bossGroup = eventLoops.getBossGroup();
+        childGroup = eventLoops.getChildGroup();
         ServerBootstrap sslBoostrap = new ServerBootstrap();
         ServerBootstrap nonSslBoostrap = new ServerBootstrap();
 
-        nonSslBoostrap.group(bossGroup, childGroup)
-                .channel(NioServerSocketChannel.class)
+        ByteBufAllocator allocator = config.getAllocator().create();
+        setOptions(nonSslBoostrap, allocator);
+        nonSslBoostrap.channel(transport.serverChannelClass())
                 .localAddress(new InetSocketAddress(config.getIP(), config.getPort()))
                 .childHandler(nonSslChannelInitializer);
         if (sslChannelInitializer != null) {
-            sslBoostrap.group(bossGroup, childGroup)
-                    .channel(NioServerSocketChannel.class)
+            setOptions(sslBoostrap, allocator);
+            sslBoostrap.channel(transport.serverChannelClass())
                     .localAddress((new InetSocketAddress(config.getIP(), config.getSslPort())))
                     .childHandler(sslChannelInitializer);
         }
 
 
-        nonSslBoostrap.bind().sync();
+        int acceptors = 1;
+        if (config.isReusePort() && transport.supportsReusePort()) {
+            // 每个boss EventLoop各bind一个监听socket
+            acceptors = 0;
+            for (EventExecutor loop : bossGroup) {
+                bindReusePort(nonSslBoostrap, (EventLoop) loop);
+                if (sslChannelInitializer != null) {
+                    bindReusePort(sslBoostrap, (EventLoop) loop);
+                }
+                acceptors++;
+            }
+        } else {
+            if (config.isReusePort()) {
+                log.warn("SO_REUSEPORT is unsupported with transport {}, bind only one listening socket", transport);
+            }
+            channels.add(nonSslBoostrap.group(bossGroup, childGroup).bind().sync().channel());
+            if (sslChannelInitializer != null) {
+                channels.add(sslBoostrap.group(bossGroup, childGroup).bind().sync().channel());
+            }
+        }
+
         if (sslChannelInitializer != null) {
-            sslBoostrap.bind().sync();
+            sslChannelInitializer.startCertReload(config.getCertReloadInterval());
         }
 
-        log.info("Socket server initialized");
+        log.info("Socket server on port {} initialized with transport {}, {} acceptor(s){}", config.getPort(), transport, acceptors,
+                ownsEventLoops ? "" : ", shared event loops");
+    }
+
+    private void bindReusePort(ServerBootstrap bootstrap, EventLoop bossLoop) throws InterruptedException {
+        channels.add(bootstrap.clone()
+                .group(bossLoop, childGroup)
+                .option(UnixChannelOption.SO_REUSEPORT, true)
+                .bind().sync().channel());
+    }
+
+    private void setOptions(ServerBootstrap bootstrap, ByteBufAllocator allocator) {
+        bootstrap.handler(acceptedChannelTracker)
+                .option(ChannelOption.SO_BACKLOG, config.getBacklog())
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.RCVBUF_ALLOCATOR, kRecvByteBufAllocator)
+                .childOption(ChannelOption.TCP_NODELAY, config.isTcpNoDelay())
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                        new WriteBufferWaterMark(config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark()));
+        if (config.getReceiveBufferSize() > 0) {
+            // 设在listen socket上，accept出来的连接在握手时就能用上对应的TCP窗口
+            bootstrap.option(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+            bootstrap.childOption(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        if (config.getSendBufferSize() > 0) {
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, config.getSendBufferSize());
+        }
     }
 
     public void stop() throws Exception {
-        bossGroup.shutdownGracefully().sync();
-        childGroup.shutdownGracefully().sync();
+        if (sslChannelInitializer != null) {
+            sslChannelInitializer.stopCertReload();
+        }
+        // DefaultChannelGroup先关监听socket，再关已有连接
+        channels.close().awaitUninterruptibly();
+        if (ownsEventLoops) {
+            eventLoops.stop();
+        }
+    }
+
+    // 共用事件循环时，这几个按端口配置的项不生效，配了和默认值不一样的就提醒一下，应该配在event-loops里
+    private void warnIgnoredEventLoopOptions() {
+        SocketConfig defaults = new SocketConfig();
+        if (config.getTransport() != defaults.getTransport() || config.getBossThreads() != defaults.getBossThreads()
+                || config.getWorkerThreads() != defaults.getWorkerThreads()
+                || config.getEventLoopReportInterval() != defaults.getEventLoopReportInterval()) {
+            log.warn("Port {} uses shared event loops, its transport/boss-threads/worker-threads/event-loop-report-interval are ignored",
+                    config.getPort());
+        }
     }
 
 }
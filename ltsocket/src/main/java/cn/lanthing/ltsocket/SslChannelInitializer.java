@@ -31,60 +31,225 @@
 
 package cn.lanthing.ltsocket;
 
+import cn.lanthing.codec.CodecStats;
 import cn.lanthing.codec.LtCodec;
+import cn.lanthing.codec.MessageRegistry;
 import cn.lanthing.codec.Protocol;
-import cn.lanthing.ltproto.LtProto;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.OpenSslServerSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 
 import javax.net.ssl.SSLEngine;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+@Slf4j
 @Getter
 @Setter
 public class SslChannelInitializer extends ChannelInitializer<Channel> {
 
-    private SslContext sslContext;
+    // 证书文件变化后整个换掉，新连接用新的，已经建立的连接不受影响
+    private volatile SslContext sslContext;
 
     private MessageDispatcher messageDispatcher;
 
     private SocketConfig socketConfig;
 
+    private MessageRegistry messageRegistry;
+
+    private CodecStats codecStats;
+
+    private IdleReaper idleReaper;
+
+    private Backpressure backpressure;
+
+    private SslStats sslStats = new SslStats();
+
+    // @Sharable，所有连接共用
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final LtCodec ltCodec;
+
+    // OpenSSL加密session ticket用的key(name+hmac+aes)，进程内固定，重建SslContext后之前发出去的ticket还能用。
+    // 存原始字节，OpenSslSessionTicketKey要在确认tcnative可用之后才能创建
+    @Getter(AccessLevel.NONE)
+    private final byte[] ticketKey = new byte[48];
+
+    // 上次加载(不管成功失败)时证书和私钥文件的修改时间和大小，没变就不重新加载
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private List<Long> certFingerprint;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private ScheduledFuture<?> reloadFuture;
+
     public SslChannelInitializer(SocketConfig socketConfig, MessageDispatcher messageDispatcher) throws Exception {
+        this(socketConfig, messageDispatcher, MessageRegistry.fromLtProto());
+    }
+
+    public SslChannelInitializer(SocketConfig socketConfig, MessageDispatcher messageDispatcher, MessageRegistry messageRegistry) throws Exception {
         this.socketConfig = socketConfig;
         this.messageDispatcher = messageDispatcher;
+        this.messageRegistry = messageRegistry;
+        this.idleReaper = socketConfig.getReadIdleTimeout() > 0 ? new IdleReaper(socketConfig.getReadIdleTimeout()) : null;
+        this.backpressure = Backpressure.fromConfig(socketConfig);
+        for (long type : messageDispatcher.getRawMessageTypes()) {
+            messageRegistry.setLazy(type);
+        }
+        this.codecStats = new CodecStats(messageRegistry.getMaxTypeID());
+        this.ltCodec = new LtCodec(messageRegistry, socketConfig.getCompressThreshold(), codecStats);
+        new SecureRandom().nextBytes(ticketKey);
         init();
     }
 
     private void init() throws Exception {
-        Path certPath = Paths.get(socketConfig.getCertsFolder(), socketConfig.getCertChainFile());
-        Path keyPath = Paths.get(socketConfig.getCertsFolder(), socketConfig.getPrivateKeyFile());
-        sslContext = SslContextBuilder.forServer(certPath.toFile(), keyPath.toFile()).build();
-        List<LtCodec.MsgType> msgTypes = new ArrayList<>();
-        for (var msgType : LtProto.values()) {
-            msgTypes.add(new LtCodec.MsgType(msgType.ID, msgType.className));
+        certFingerprint = certFingerprint();
+        sslContext = newSslContext();
+    }
+
+    private SslContext newSslContext() throws Exception {
+        var provider = socketConfig.getSslProvider().resolve();
+        SslContext context = SslContextBuilder.forServer(certPath().toFile(), keyPath().toFile())
+                .sslProvider(provider)
+                .sessionCacheSize(socketConfig.getSslSessionCacheSize())
+                .sessionTimeout(socketConfig.getSslSessionTimeout())
+                .build();
+        // JDK的TLS 1.3默认就会发session ticket(jdk.tls.server.enableSessionTicketExtension)，key由JDK自己管理
+        if (provider == SslProvider.OPENSSL && context.sessionContext() instanceof OpenSslServerSessionContext sessionContext) {
+            sessionContext.setSessionCacheEnabled(true);
+            sessionContext.setTicketKeys(new OpenSslSessionTicketKey(
+                    Arrays.copyOfRange(ticketKey, 0, 16), Arrays.copyOfRange(ticketKey, 16, 32), Arrays.copyOfRange(ticketKey, 32, 48)));
         }
-        LtCodec.initialize(msgTypes);
+        log.info("SSL on port {} uses {}, session cache size {}, session timeout {}s", socketConfig.getSslPort(), provider,
+                socketConfig.getSslSessionCacheSize(), socketConfig.getSslSessionTimeout());
+        return context;
     }
 
+    private Path certPath() {
+        return Paths.get(socketConfig.getCertsFolder(), socketConfig.getCertChainFile());
+    }
+
+    private Path keyPath() {
+        return Paths.get(socketConfig.getCertsFolder(), socketConfig.getPrivateKeyFile());
+    }
+
+    // 跟随符号链接，certbot之类的工具是通过切换链接来换证书的
+    private List<Long> certFingerprint() throws Exception {
+        return List.of(Files.getLastModifiedTime(certPath()).toMillis(), Files.size(certPath()),
+                Files.getLastModifiedTime(keyPath()).toMillis(), Files.size(keyPath()));
+    }
+
+    // 每隔intervalSeconds秒检查一次证书文件，由SocketServer启动和停止
+    public void startCertReload(int intervalSeconds) {
+        if (intervalSeconds <= 0 || reloadFuture != null) {
+            return;
+        }
+        reloadFuture = GlobalEventExecutor.INSTANCE.scheduleWithFixedDelay(this::reloadIfChanged, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stopCertReload() {
+        if (reloadFuture != null) {
+            reloadFuture.cancel(false);
+            reloadFuture = null;
+        }
+    }
+
+    // 在GlobalEventExecutor上执行，不占EventLoop。新证书要能跟自己握手成功才会换上，
+    // 证书和私钥只换了一个、文件写了一半之类的情况会被拦下来，继续用旧的，等文件再变化时重试
+    public void reloadIfChanged() {
+        List<Long> fingerprint;
+        try {
+            fingerprint = certFingerprint();
+        } catch (Exception e) {
+            log.error("Check certificate files in {} failed: {}", socketConfig.getCertsFolder(), e.toString());
+            sslStats.onCertReloadFailed();
+            return;
+        }
+        if (fingerprint.equals(certFingerprint)) {
+            return;
+        }
+        certFingerprint = fingerprint;
+        final long start = System.nanoTime();
+        SslContext context;
+        try {
+            context = newSslContext();
+            selfTest(context);
+        } catch (Exception e) {
+            log.error("Reload certificate {} failed, keep using the old one: {}", certPath(), e.toString());
+            sslStats.onCertReloadFailed();
+            return;
+        }
+        sslContext = context;
+        final long nanos = System.nanoTime() - start;
+        sslStats.onCertReloaded(nanos);
+        log.info("Certificate {} reloaded in {}ms", certPath(), TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    // 在内存里用两个EmbeddedChannel跟新的SslContext握一次手
+    private static void selfTest(SslContext serverContext) throws Exception {
+        SslContext clientContext = SslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .build();
+        SslHandler serverHandler = serverContext.newHandler(ByteBufAllocator.DEFAULT);
+        SslHandler clientHandler = clientContext.newHandler(ByteBufAllocator.DEFAULT);
+        EmbeddedChannel server = new EmbeddedChannel(serverHandler);
+        EmbeddedChannel client = new EmbeddedChannel(clientHandler);
+        try {
+            for (int i = 0; i < 8 && !(serverHandler.handshakeFuture().isDone() && clientHandler.handshakeFuture().isDone()); i++) {
+                transfer(client, server);
+                transfer(server, client);
+            }
+            if (!serverHandler.handshakeFuture().isSuccess()) {
+                Throwable cause = serverHandler.handshakeFuture().cause();
+                throw new Exception("Self test handshake failed: " + (cause == null ? "not finished" : cause.toString()));
+            }
+        } finally {
+            client.finishAndReleaseAll();
+            server.finishAndReleaseAll();
+        }
+    }
+
+    private static void transfer(EmbeddedChannel from, EmbeddedChannel to) {
+        ByteBuf buf;
+        while ((buf = from.readOutbound()) != null) {
+            to.writeInbound(buf);
+        }
+    }
 
     @Override
     protected void initChannel(Channel ch) {
         SSLEngine sslEngine = sslContext.newEngine(ch.alloc());
         sslEngine.setUseClientMode(false);
         SslHandler sslHandler = new SslHandler(sslEngine);
+        sslStats.watch(sslHandler);
         ch.pipeline().addFirst("ssl", sslHandler);
-        ch.pipeline().addLast("protocol", new Protocol());
-        ch.pipeline().addLast("message", new LtCodec());
-        Connection connection = new Connection(messageDispatcher);
+        if (idleReaper != null) {
+            ch.pipeline().addLast("idle", idleReaper.newHandler());
+        }
+        ch.pipeline().addLast("protocol", new Protocol(socketConfig.isEnableChecksum()));
+        ch.pipeline().addLast("message", ltCodec);
+        Connection connection = new Connection(messageDispatcher, socketConfig.getMailboxCapacity(), backpressure);
         ch.pipeline().addLast("connection", connection);
     }
 
@@ -0,0 +1,63 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import io.netty.handler.ssl.SslProvider;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 配置里的ssl-provider: jdk|openssl|auto。
+ * openssl用的是netty-tcnative(BoringSSL)，握手和加解密都比JDK快很多，ltsocket依赖了netty-tcnative-boringssl-static，
+ * 带了linux/osx/windows常见架构的native库，其他平台加载不了时退回JDK，auto会优先选openssl。
+ */
+@Slf4j
+public enum SslProviderType {
+
+    Jdk,
+    OpenSsl,
+    Auto;
+
+    public SslProvider resolve() {
+        switch (this) {
+            case OpenSsl:
+                if (io.netty.handler.ssl.OpenSsl.isAvailable()) {
+                    return SslProvider.OPENSSL;
+                }
+                log.warn("OpenSSL is unavailable, fallback to JDK: {}", io.netty.handler.ssl.OpenSsl.unavailabilityCause().toString());
+                return SslProvider.JDK;
+            case Auto:
+                return io.netty.handler.ssl.OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+            default:
+                return SslProvider.JDK;
+        }
+    }
+}
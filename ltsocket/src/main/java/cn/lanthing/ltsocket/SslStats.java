@@ -0,0 +1,112 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import io.netty.handler.ssl.ReferenceCountedOpenSslEngine;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.internal.tcnative.SSL;
+import io.netty.util.concurrent.Future;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SSL握手和证书热加载的统计，一个SSL监听端口一个。
+ * 握手耗时从accept到握手完成，包括等客户端发包的网络往返。
+ * JDK复用的session保留着第一次握手时的创建时间，所以session创建时间早于这次握手开始就算作复用(session cache或者session ticket)；
+ * BoringSSL复用时会把session时间改成当前时间，只能直接问OpenSSL这次是不是复用的。
+ */
+public class SslStats {
+
+    // lastCertReloadMillis是最近一次成功换证书花的时间(加载+自检握手)
+    public record Snapshot(long handshakes, long resumed, long failed, double resumptionRate, LatencyHistogram.Snapshot handshakeTime,
+                           long certReloads, long certReloadFailures, long lastCertReloadMillis) {}
+
+    private final LatencyHistogram handshakeTime = new LatencyHistogram();
+
+    private final LongAdder resumed = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder certReloads = new LongAdder();
+
+    private final LongAdder certReloadFailures = new LongAdder();
+
+    private volatile long lastCertReloadNanos = 0;
+
+    // 在initChannel里调用
+    void watch(SslHandler sslHandler) {
+        final long startNanos = System.nanoTime();
+        final long startMillis = System.currentTimeMillis();
+        sslHandler.handshakeFuture().addListener((Future<? super Object> future) -> {
+            if (!future.isSuccess()) {
+                failed.increment();
+                return;
+            }
+            handshakeTime.record(System.nanoTime() - startNanos);
+            if (isResumed(sslHandler.engine(), startMillis)) {
+                resumed.increment();
+            }
+        });
+    }
+
+    private static boolean isResumed(SSLEngine engine, long startMillis) {
+        if (engine instanceof ReferenceCountedOpenSslEngine openSslEngine) {
+            // 和netty内部一样锁住engine，避免ssl指针在连接关闭时被释放
+            synchronized (openSslEngine) {
+                final long ssl = openSslEngine.sslPointer();
+                return ssl != 0 && SSL.isSessionReused(ssl);
+            }
+        }
+        SSLSession session = engine.getSession();
+        return session != null && session.getCreationTime() < startMillis;
+    }
+
+    void onCertReloaded(long nanos) {
+        certReloads.increment();
+        lastCertReloadNanos = nanos;
+    }
+
+    void onCertReloadFailed() {
+        certReloadFailures.increment();
+    }
+
+    public Snapshot snapshot() {
+        var time = handshakeTime.snapshot();
+        final long resumedCount = resumed.sum();
+        return new Snapshot(time.count(), resumedCount, failed.sum(),
+                time.count() == 0 ? 0 : (double) resumedCount / time.count(), time,
+                certReloads.sum(), certReloadFailures.sum(), TimeUnit.NANOSECONDS.toMillis(lastCertReloadNanos));
+    }
+}
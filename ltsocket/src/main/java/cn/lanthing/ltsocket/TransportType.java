@@ -0,0 +1,101 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 配置里的transport: nio|epoll|io_uring|auto。
+ * epoll和io_uring只在Linux上有，native库加载失败时退回NIO，auto会优先选epoll。
+ */
+@Slf4j
+public enum TransportType {
+
+    Nio,
+    Epoll,
+    IoUring,
+    Auto;
+
+    // 把Auto和当前机器上不可用的transport换成实际能用的
+    public TransportType resolve() {
+        switch (this) {
+            case Epoll:
+                if (io.netty.channel.epoll.Epoll.isAvailable()) {
+                    return Epoll;
+                }
+                log.warn("Epoll is unavailable, fallback to NIO: {}", io.netty.channel.epoll.Epoll.unavailabilityCause().toString());
+                return Nio;
+            case IoUring:
+                if (IOUring.isAvailable()) {
+                    return IoUring;
+                }
+                log.warn("io_uring is unavailable, fallback to NIO: {}", IOUring.unavailabilityCause().toString());
+                return Nio;
+            case Auto:
+                return io.netty.channel.epoll.Epoll.isAvailable() ? Epoll : Nio;
+            default:
+                return Nio;
+        }
+    }
+
+    // threads为0时用Netty的默认值(CPU核数*2)
+    public EventLoopGroup newEventLoopGroup(int threads) {
+        return switch (resolve()) {
+            case Epoll -> new EpollEventLoopGroup(threads);
+            case IoUring -> new IOUringEventLoopGroup(threads);
+            default -> new NioEventLoopGroup(threads);
+        };
+    }
+
+    // SO_REUSEPORT只有native transport能设置
+    public boolean supportsReusePort() {
+        TransportType resolved = resolve();
+        return resolved == Epoll || resolved == IoUring;
+    }
+
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return switch (resolve()) {
+            case Epoll -> EpollServerSocketChannel.class;
+            case IoUring -> IOUringServerSocketChannel.class;
+            default -> NioServerSocketChannel.class;
+        };
+    }
+}
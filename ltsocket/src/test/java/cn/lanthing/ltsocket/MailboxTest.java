@@ -0,0 +1,207 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.ltsocket;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MailboxTest {
+
+    // 手动驱动的executor，run()之前任务一直排着，方便检查中间状态
+    private static class ManualExecutor implements Executor {
+        final Queue<Runnable> pending = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            pending.add(command);
+        }
+
+        void runAll() {
+            Runnable r;
+            while ((r = pending.poll()) != null) {
+                r.run();
+            }
+        }
+    }
+
+    @Test
+    public void runInOfferOrderOneAtATime() throws Exception {
+        final int kProducers = 4;
+        final int kTasksPerProducer = 5000;
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        Mailbox mailbox = new Mailbox(pool, 0);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<int[]> executed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(kProducers * kTasksPerProducer);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < kProducers; p++) {
+            final int producer = p;
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < kTasksPerProducer; i++) {
+                    final int seq = i;
+                    Assertions.assertTrue(mailbox.offer(() -> {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        executed.add(new int[]{producer, seq});
+                        running.decrementAndGet();
+                        done.countDown();
+                        return null;
+                    }));
+                }
+            });
+            t.start();
+            producers.add(t);
+        }
+        start.countDown();
+        for (Thread t : producers) {
+            t.join();
+        }
+        Assertions.assertTrue(done.await(10, TimeUnit.SECONDS));
+        // 最后一个任务countDown()之后run()才清掉scheduled，等线程池退出再看isIdle()
+        pool.shutdown();
+        Assertions.assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+
+        Assertions.assertEquals(1, maxRunning.get());
+        // 同一个生产者投递的任务严格按投递顺序执行
+        int[] next = new int[kProducers];
+        for (int[] e : executed) {
+            Assertions.assertEquals(next[e[0]]++, e[1]);
+        }
+        Assertions.assertEquals(kProducers * kTasksPerProducer, mailbox.getStats().processed());
+        Assertions.assertTrue(mailbox.isIdle());
+    }
+
+    @Test
+    public void rejectWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 2);
+        List<Integer> executed = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final int seq = i;
+            boolean accepted = mailbox.offer(() -> {
+                executed.add(seq);
+                return null;
+            });
+            Assertions.assertEquals(i < 2, accepted);
+        }
+        Assertions.assertEquals(2, mailbox.getStats().depth());
+        executor.runAll();
+        Assertions.assertEquals(List.of(0, 1), executed);
+        Assertions.assertEquals(0, mailbox.getStats().depth());
+        // 排空以后又能放进去
+        Assertions.assertTrue(mailbox.offer(() -> null));
+    }
+
+    @Test
+    public void forceOfferBypassesCapacity() {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 1);
+        List<String> executed = new ArrayList<>();
+        Assertions.assertTrue(mailbox.offer(() -> {
+            executed.add("message");
+            return null;
+        }));
+        Assertions.assertFalse(mailbox.offer(() -> null));
+        mailbox.forceOffer(() -> {
+            executed.add("closed");
+            return null;
+        });
+        Assertions.assertEquals(2, mailbox.getStats().depth());
+        executor.runAll();
+        Assertions.assertEquals(List.of("message", "closed"), executed);
+        Assertions.assertTrue(mailbox.isIdle());
+    }
+
+    @Test
+    public void notIdleWhileTaskRunning() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Mailbox mailbox = new Mailbox(pool, 0);
+        Assertions.assertTrue(mailbox.isIdle());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        mailbox.offer(() -> {
+            started.countDown();
+            release.await();
+            return null;
+        });
+        Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+        // 队列已经空了，但任务还在跑，inline的handler不能插队
+        Assertions.assertEquals(0, mailbox.getStats().depth());
+        Assertions.assertFalse(mailbox.isIdle());
+        release.countDown();
+        pool.shutdown();
+        Assertions.assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(mailbox.isIdle());
+    }
+
+    @Test
+    public void keepRunningAfterTaskThrowsError() {
+        ManualExecutor executor = new ManualExecutor();
+        Mailbox mailbox = new Mailbox(executor, 0);
+        List<String> executed = new ArrayList<>();
+        mailbox.offer(() -> {
+            throw new StackOverflowError();
+        });
+        mailbox.offer(() -> {
+            executed.add("after error");
+            return null;
+        });
+        executor.runAll();
+        Assertions.assertEquals(List.of("after error"), executed);
+        Assertions.assertTrue(mailbox.isIdle());
+        // 出过错的信箱还能继续调度新任务
+        mailbox.offer(() -> {
+            executed.add("later");
+            return null;
+        });
+        executor.runAll();
+        Assertions.assertEquals(List.of("after error", "later"), executed);
+    }
+}
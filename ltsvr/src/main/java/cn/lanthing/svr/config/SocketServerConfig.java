@@ -31,6 +31,7 @@
 
 package cn.lanthing.svr.config;
 
+import cn.lanthing.ltsocket.EventLoopConfig;
 import cn.lanthing.ltsocket.SocketConfig;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
@@ -50,4 +51,10 @@ public class SocketServerConfig {
     public SocketConfig controllingSocketConfig() {
         return new SocketConfig();
     }
+
+    @Bean
+    @ConfigurationProperties("event-loops")
+    public EventLoopConfig eventLoopConfig() {
+        return new EventLoopConfig();
+    }
 }
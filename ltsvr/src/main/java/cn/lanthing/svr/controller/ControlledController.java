@@ -31,6 +31,7 @@
 
 package cn.lanthing.svr.controller;
 
+import cn.lanthing.codec.FrameCache;
 import cn.lanthing.codec.LtMessage;
 import cn.lanthing.ltproto.ErrorCodeOuterClass;
 import cn.lanthing.ltproto.LtProto;
@@ -54,6 +55,9 @@ import java.util.Arrays;
 @MessageController
 @Component
 public class ControlledController {
+
+    private static final LtMessage kKeepAliveAck = FrameCache.preEncode(LtProto.KeepAliveAck.ID, KeepAliveAckProto.KeepAliveAck.getDefaultInstance());
+
     @Autowired
     private DeviceIDService deviceIDService;
 
@@ -206,10 +210,8 @@ public class ControlledController {
         return null;
     }
 
-    @MessageMapping(proto = LtProto.KeepAlive)
+    @MessageMapping(proto = LtProto.KeepAlive, inline = true)
     public LtMessage handleKeepAlive(long connectionID, KeepAliveProto.KeepAlive msg) {
-        //TODO: 删除超时链接
-        var ack = KeepAliveAckProto.KeepAliveAck.newBuilder();
-        return new LtMessage(LtProto.KeepAliveAck.ID, ack.build());
+        return kKeepAliveAck;
     }
 }
@@ -31,6 +31,7 @@
 
 package cn.lanthing.svr.controller;
 
+import cn.lanthing.codec.FrameCache;
 import cn.lanthing.codec.LtMessage;
 import cn.lanthing.ltproto.ErrorCodeOuterClass;
 import cn.lanthing.ltproto.LtProto;
@@ -57,6 +58,9 @@ import java.util.UUID;
 @MessageController
 @Component
 public class ControllingController {
+
+    private static final LtMessage kKeepAliveAck = FrameCache.preEncode(LtProto.KeepAliveAck.ID, KeepAliveAckProto.KeepAliveAck.getDefaultInstance());
+
     @Autowired
     private DeviceIDService deviceIDService;
 
@@ -195,19 +199,10 @@ public class ControllingController {
         } else {
             ack.setErrCode(ErrorCodeOuterClass.ErrorCode.Success);
             log.info("LoginDevice(connectionID:{}, deviceID:{}) success)", connectionID, msg.getDeviceId());
-            VersionService.Version version = versionService.getNewVersionPC(msg.getVersionMajor(), msg.getVersionMinor(), msg.getVersionPatch());
-            if (version != null) {
-                // version != null说明有新版本
-                var newVer = NewVersionProto.NewVersion.newBuilder().
-                        setMajor(version.major())
-                        .setMinor(version.minor())
-                        .setPatch(version.patch())
-                        .setForce(version.force())
-                        .setTimestamp(version.timestamp())
-                        .setUrl(version.url())
-                        .addAllFeatures(version.features())
-                        .addAllBugfix(version.bugfix());
-                controllingSocketService.send(connectionID, new LtMessage(LtProto.NewVersion.ID, newVer.build()));
+            LtMessage newVersion = versionService.getNewVersionMessagePC(msg.getVersionMajor(), msg.getVersionMinor(), msg.getVersionPatch());
+            if (newVersion != null) {
+                // newVersion != null说明有新版本
+                controllingSocketService.send(connectionID, newVersion);
             }
         }
         return new LtMessage(LtProto.LoginDeviceAck.ID, ack.build());
@@ -286,10 +281,8 @@ public class ControllingController {
         return null;
     }
 
-    @MessageMapping(proto = LtProto.KeepAlive)
+    @MessageMapping(proto = LtProto.KeepAlive, inline = true)
     public LtMessage handleKeepAlive(long connectionID, KeepAliveProto.KeepAlive msg) {
-        //TODO: 删除超时链接
-        var ack = KeepAliveAckProto.KeepAliveAck.newBuilder();
-        return new LtMessage(LtProto.KeepAliveAck.ID, ack.build());
+        return kKeepAliveAck;
     }
 }
@@ -31,13 +31,34 @@
 
 package cn.lanthing.svr.controller;
 
+import cn.lanthing.codec.CodecStats;
+import cn.lanthing.codec.LtMessage;
+import cn.lanthing.ltproto.LtProto;
+import cn.lanthing.ltproto.server.NewVersionProto;
+import cn.lanthing.ltproto.server.RedirectServerAddressProto;
+import cn.lanthing.ltsocket.Backpressure;
+import cn.lanthing.ltsocket.IdleReaper;
+import cn.lanthing.ltsocket.MessageDispatcher;
+import cn.lanthing.ltsocket.MessageMetrics;
+import cn.lanthing.ltsocket.NonSslChannelInitializer;
+import cn.lanthing.ltsocket.RateLimiter;
+import cn.lanthing.ltsocket.SslChannelInitializer;
+import cn.lanthing.ltsocket.SslStats;
 import cn.lanthing.svr.service.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.List;
+import java.util.Map;
 
 
 @RestController
@@ -53,6 +74,28 @@ public class ManagerController {
 
     public record Devices(int used, int unused, int total, OnlineDevices online){}
 
+    // sslCodec和ssl在没开SSL时是null，rateLimit在没配置限速时是null，idleReaped在read-idle-timeout为0时是null
+    public record ListenerMetrics(Map<Long, MessageMetrics.Snapshot> messages, MessageDispatcher.MailboxSummary mailbox,
+                                  List<CodecStats.TypeStats> codec, List<CodecStats.TypeStats> sslCodec,
+                                  SslStats.Snapshot ssl, Map<Long, RateLimiter.Stats> rateLimit,
+                                  Map<IdleReaper.Reason, Long> idleReaped, Map<IdleReaper.Reason, Long> sslIdleReaped,
+                                  Backpressure.Stats backpressure, Backpressure.Stats sslBackpressure,
+                                  MessageDispatcher.PendingWriteSummary pendingWrites) {}
+
+    public record Metrics(ListenerMetrics controlling, ListenerMetrics controlled) {}
+
+    // connectionID -> 还没写出去的字节数，只列有积压的连接
+    public record PendingWrites(Map<Long, Long> controlling, Map<Long, Long> controlled) {}
+
+    // 各端口实际发出的连接数
+    public record BroadcastResult(int controlling, int controlled) {}
+
+    // 群发接口能把所有在线设备重定向到任意地址，请求头里必须带上和配置一致的token，没配置时一律拒绝
+    public static final String kBroadcastTokenHeader = "X-Mgr-Token";
+
+    @Value("${mgr.broadcast-token:}")
+    private String broadcastToken;
+
     @Autowired
     private DeviceIDService deviceIDService;
 
@@ -68,6 +111,33 @@ public class ManagerController {
     @Autowired
     private OnlineStatisticService onlineStatisticService;
 
+    @Autowired
+    private VersionService versionService;
+
+    @Autowired
+    private ControllingSocketService controllingSocketService;
+
+    @Autowired
+    private ControlledSocketService controlledSocketService;
+
+    @Autowired
+    private MessageDispatcher controllingDispatcher;
+
+    @Autowired
+    private MessageDispatcher controlledDispatcher;
+
+    @Autowired
+    private NonSslChannelInitializer controllingNonSslChannelInitializer;
+
+    @Autowired(required = false)
+    private SslChannelInitializer controllingSslChannelInitializer;
+
+    @Autowired
+    private NonSslChannelInitializer controlledNonSslChannelInitializer;
+
+    @Autowired(required = false)
+    private SslChannelInitializer controlledSslChannelInitializer;
+
     @GetMapping("/mgr/devices")
     public JsonResult<Devices> devices() {
         var stat = deviceIDService.getDeviceIDStat();
@@ -78,6 +148,18 @@ public class ManagerController {
                         new OnlineDevices(controllingCount, controlledCount, controlledCount + controllingCount)));
     }
 
+    @GetMapping("/mgr/metrics")
+    public JsonResult<Metrics> metrics() {
+        return new JsonResult<>(0, "ok", new Metrics(
+                listenerMetrics(controllingDispatcher, controllingNonSslChannelInitializer, controllingSslChannelInitializer),
+                listenerMetrics(controlledDispatcher, controlledNonSslChannelInitializer, controlledSslChannelInitializer)));
+    }
+
+    @GetMapping("/mgr/metrics/pending-writes")
+    public JsonResult<PendingWrites> pendingWrites() {
+        return new JsonResult<>(0, "ok", new PendingWrites(pendingWrites(controllingDispatcher), pendingWrites(controlledDispatcher)));
+    }
+
     @GetMapping("/mgr/devices/online")
     public JsonResult<List<OnlineStatisticService.OnlineHistory>> onlineHistory(@RequestParam("index") int index , @RequestParam("limit") int limit) {
         limit = Math.min(144, limit);
@@ -90,4 +172,78 @@ public class ManagerController {
         limit = Math.min(limit, kMaxOrdersPerQuery);
         return new JsonResult<>(0, "ok", orderService.getHistoryOrders(index, limit));
     }
+
+    // 把最新版本推给所有版本比它旧的已登录主控端，os为空表示不限系统
+    @PostMapping("/mgr/broadcast/new-version")
+    public JsonResult<BroadcastResult> broadcastNewVersion(@RequestHeader(value = kBroadcastTokenHeader, required = false) String token,
+                                                           @RequestParam(value = "os", required = false) String os) {
+        checkBroadcastToken(token);
+        LtMessage newVersion = versionService.getNewVersionMessagePC(0, 0, 0);
+        if (newVersion == null) {
+            return new JsonResult<>(-1, "no version available", null);
+        }
+        int controlling;
+        try {
+            // 直接发VersionService缓存的编码结果，版本号也从这条消息里取，和发出去的内容保持一致
+            var proto = (NewVersionProto.NewVersion) newVersion.protoMsg;
+            final long newest = proto.getMajor() * 1_000_000L + proto.getMinor() * 1_000L + proto.getPatch();
+            controlling = controllingSocketService.broadcast(newVersion, session ->
+                    session.deviceID() != 0 && matchOS(os, session.os()) && session.version() < newest);
+        } finally {
+            newVersion.release();
+        }
+        return new JsonResult<>(0, "ok", new BroadcastResult(controlling, 0));
+    }
+
+    // 停机维护前把已登录的客户端重定向到别的服务器。maxVersion按major*1000000+minor*1000+patch算，<=0表示不限版本
+    @PostMapping("/mgr/broadcast/redirect")
+    public JsonResult<BroadcastResult> broadcastRedirect(@RequestHeader(value = kBroadcastTokenHeader, required = false) String token,
+                                                         @RequestParam("host") String host, @RequestParam("port") int port,
+                                                         @RequestParam(value = "os", required = false) String os,
+                                                         @RequestParam(value = "maxVersion", defaultValue = "0") int maxVersion) {
+        checkBroadcastToken(token);
+        var redirect = RedirectServerAddressProto.RedirectServerAddress.newBuilder()
+                .setHost(host)
+                .setPort(port)
+                .build();
+        int controlling = controllingSocketService.broadcast(LtProto.RedirectServerAddress.ID, redirect, session ->
+                session.deviceID() != 0 && matchOS(os, session.os()) && (maxVersion <= 0 || session.version() <= maxVersion));
+        int controlled = controlledSocketService.broadcast(LtProto.RedirectServerAddress.ID, redirect, session ->
+                session.deviceID() != 0 && matchOS(os, session.os()) && (maxVersion <= 0 || session.version() <= maxVersion));
+        return new JsonResult<>(0, "ok", new BroadcastResult(controlling, controlled));
+    }
+
+    private void checkBroadcastToken(String token) {
+        if (broadcastToken == null || broadcastToken.isEmpty() || token == null
+                || !MessageDigest.isEqual(broadcastToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN);
+        }
+    }
+
+    private static boolean matchOS(String os, String sessionOS) {
+        return os == null || os.isEmpty() || os.equalsIgnoreCase(sessionOS);
+    }
+
+    private static ListenerMetrics listenerMetrics(MessageDispatcher dispatcher, NonSslChannelInitializer nonSsl, SslChannelInitializer ssl) {
+        var rateLimiter = dispatcher.getRateLimiter();
+        return new ListenerMetrics(dispatcher.getMessageMetrics(), dispatcher.getMailboxSummary(), nonSsl.getCodecStats().snapshot(),
+                ssl == null ? null : ssl.getCodecStats().snapshot(),
+                ssl == null ? null : ssl.getSslStats().snapshot(),
+                rateLimiter == null ? null : rateLimiter.getStats(),
+                idleReaped(nonSsl.getIdleReaper()),
+                ssl == null ? null : idleReaped(ssl.getIdleReaper()),
+                nonSsl.getBackpressure().getStats(),
+                ssl == null ? null : ssl.getBackpressure().getStats(),
+                dispatcher.getPendingWriteSummary());
+    }
+
+    private static Map<Long, Long> pendingWrites(MessageDispatcher dispatcher) {
+        var pending = dispatcher.getPendingWriteBytes();
+        pending.values().removeIf(bytes -> bytes == 0);
+        return pending;
+    }
+
+    private static Map<IdleReaper.Reason, Long> idleReaped(IdleReaper idleReaper) {
+        return idleReaper == null ? null : idleReaper.getStats();
+    }
 }
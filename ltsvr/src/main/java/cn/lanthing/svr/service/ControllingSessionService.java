@@ -31,6 +31,9 @@
 
 package cn.lanthing.svr.service;
 
+import java.util.Set;
+import java.util.function.Predicate;
+
 public interface ControllingSessionService {
 
     record Session(long connectionID, long deviceID, int version, String os) {
@@ -47,6 +50,9 @@ public interface ControllingSessionService {
 
     Session getSessionByConnectionID(long connectionID);
 
+    // 一次加锁取出filter选中的所有connectionID，给群发用。filter在锁里调用，不要在里面做耗时的事
+    Set<Long> getConnectionIDs(Predicate<Session> filter);
+
     Long getConnectionIDByDeviceID(long deviceID);
 
     int getSessionCount();
@@ -32,7 +32,16 @@
 package cn.lanthing.svr.service;
 
 import cn.lanthing.codec.LtMessage;
+import com.google.protobuf.Message;
+
+import java.util.function.Predicate;
 
 public interface ControllingSocketService {
     void send(long connectionID, LtMessage ltMessage);
+
+    // 发给filter选中的所有session，消息只序列化一次，返回发出的连接数
+    int broadcast(long type, Message message, Predicate<ControllingSessionService.Session> filter);
+
+    // 发送已经编码好的消息(FrameCache)，不再序列化，调用方持有的引用由调用方释放
+    int broadcast(LtMessage ltMessage, Predicate<ControllingSessionService.Session> filter);
 }
@@ -31,6 +31,8 @@
 
 package cn.lanthing.svr.service;
 
+import cn.lanthing.codec.LtMessage;
+
 import java.util.List;
 
 public interface VersionService {
@@ -47,6 +49,9 @@ public interface VersionService {
 
     void reloadVersionsFile();
     Version getNewVersionPC(int clientMajor, int clientMinor, int clientPatch);
+    // 和getNewVersionPC()一样，返回的是预先编码好的NewVersion消息。
+    // 返回的消息带一个引用，交给send()后由发送路径释放，不发的话调用方要自己release()
+    LtMessage getNewVersionMessagePC(int clientMajor, int clientMinor, int clientPatch);
     Version getNewVersionAndroid(int clientMajor, int clientMinor, int clientPatch);
     Version getNewVersionIOS(int clientMajor, int clientMinor, int clientPatch);
 }
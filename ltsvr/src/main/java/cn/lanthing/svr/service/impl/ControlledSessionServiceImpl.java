@@ -35,7 +35,10 @@ import cn.lanthing.svr.service.ControlledSessionService;
 import org.springframework.stereotype.Service;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 
 @Service
 public class ControlledSessionServiceImpl implements ControlledSessionService {
@@ -69,73 +72,96 @@ public class ControlledSessionServiceImpl implements ControlledSessionService {
 
     private final Map<Long, Long> deviceIDToConnIDMap = new HashMap<>();
 
-    //private final AutoReentrantLock lock = new AutoReentrantLock();
+    private final AutoReentrantLock lock = new AutoReentrantLock();
 
     @Override
     public void addSession(long connectionID) {
         var session = new SessionInner(connectionID);
         session.status = Status.Connected;
-        synchronized (this) {
+        try (var ignored = lock.acquire()) {
             connIDToSessionMap.putIfAbsent(connectionID, session);
         }
     }
 
     @Override
-    public synchronized Long removeSession(long connectionID) {
-
-        var session = connIDToSessionMap.remove(connectionID);
-        if (session != null) {
-            deviceIDToConnIDMap.remove(session.deviceID);
-            return session.deviceID;
-        } else {
-            return null;
+    public Long removeSession(long connectionID) {
+        try (var ignored = lock.acquire()) {
+            var session = connIDToSessionMap.remove(connectionID);
+            if (session != null) {
+                deviceIDToConnIDMap.remove(session.deviceID);
+                return session.deviceID;
+            } else {
+                return null;
+            }
         }
-
     }
 
     @Override
-    public synchronized boolean loginDevice(long connectionID, long deviceID, boolean allowControl, int version, String os) {
-        var session = connIDToSessionMap.get(connectionID);
-        if (session == null) {
-            return false;
+    public boolean loginDevice(long connectionID, long deviceID, boolean allowControl, int version, String os) {
+        try (var ignored = lock.acquire()) {
+            var session = connIDToSessionMap.get(connectionID);
+            if (session == null) {
+                return false;
+            }
+            if (session.status != Status.Connected) {
+                //已有设备登录或已断开
+                return false;
+            }
+            session.deviceID = deviceID;
+            session.allowControl = allowControl;
+            session.status = Status.DeviceLogged;
+            session.version = version;
+            session.os = os;
+            deviceIDToConnIDMap.put(deviceID, connectionID);
+            return true;
         }
-        if (session.status != Status.Connected) {
-            //已有设备登录或已断开
-            return false;
+    }
+
+    @Override
+    public Session getSessionByDeviceID(long deviceID) {
+        try (var ignored = lock.acquire()) {
+            Long connectionID = deviceIDToConnIDMap.get(deviceID);
+            if (connectionID == null) {
+                return null;
+            }
+            var session = connIDToSessionMap.get(connectionID);
+            return session == null ? null : new Session(session.connectionID, session.deviceID, session.version, session.os);
         }
-        session.deviceID = deviceID;
-        session.allowControl = allowControl;
-        session.status = Status.DeviceLogged;
-        session.version = version;
-        session.os = os;
-        deviceIDToConnIDMap.put(deviceID, connectionID);
-        return true;
     }
 
     @Override
-    public synchronized Session getSessionByDeviceID(long deviceID) {
-        Long connectionID = deviceIDToConnIDMap.get(deviceID);
-        if (connectionID == null) {
-            return null;
+    public Set<Long> getConnectionIDs(Predicate<Session> filter) {
+        Set<Long> connectionIDs = new HashSet<>();
+        try (var ignored = lock.acquire()) {
+            for (var session : connIDToSessionMap.values()) {
+                if (filter.test(new Session(session.connectionID, session.deviceID, session.version, session.os))) {
+                    connectionIDs.add(session.connectionID);
+                }
+            }
         }
-        var session = connIDToSessionMap.get(connectionID);
-        return session == null ? null : new Session(session.connectionID, session.deviceID, session.version, session.os);
+        return connectionIDs;
     }
 
     @Override
-    public synchronized Session getSessionByConnectionID(long connectionID) {
-        var session = connIDToSessionMap.get(connectionID);
-        return session == null ? null : new Session(session.connectionID, session.deviceID, session.version, session.os);
+    public Session getSessionByConnectionID(long connectionID) {
+        try (var ignored = lock.acquire()) {
+            var session = connIDToSessionMap.get(connectionID);
+            return session == null ? null : new Session(session.connectionID, session.deviceID, session.version, session.os);
+        }
     }
 
     @Override
-    public synchronized int getSessionCount() {
-        return connIDToSessionMap.size();
+    public int getSessionCount() {
+        try (var ignored = lock.acquire()) {
+            return connIDToSessionMap.size();
+        }
     }
 
     @Override
-    public synchronized void clearForTest() {
-        connIDToSessionMap.clear();
-        deviceIDToConnIDMap.clear();
+    public void clearForTest() {
+        try (var ignored = lock.acquire()) {
+            connIDToSessionMap.clear();
+            deviceIDToConnIDMap.clear();
+        }
     }
 }
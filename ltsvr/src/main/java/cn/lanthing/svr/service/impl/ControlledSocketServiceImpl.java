@@ -33,11 +33,16 @@ package cn.lanthing.svr.service.impl;
 
 import cn.lanthing.codec.LtMessage;
 import cn.lanthing.ltsocket.MessageDispatcher;
+import cn.lanthing.svr.service.ControlledSessionService;
 import cn.lanthing.svr.service.ControlledSocketService;
+import com.google.protobuf.Message;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 
+import java.util.Set;
+import java.util.function.Predicate;
+
 @Service
 public class ControlledSocketServiceImpl implements ControlledSocketService {
 
@@ -45,8 +50,23 @@ public class ControlledSocketServiceImpl implements ControlledSocketService {
     @Lazy
     private MessageDispatcher controlledDispatcher;
 
+    @Autowired
+    private ControlledSessionService controlledSessionService;
+
     @Override
     public void send(long connectionID, LtMessage ltMessage) {
         controlledDispatcher.send(connectionID, ltMessage);
     }
+
+    @Override
+    public int broadcast(long type, Message message, Predicate<ControlledSessionService.Session> filter) {
+        Set<Long> targets = controlledSessionService.getConnectionIDs(filter);
+        return targets.isEmpty() ? 0 : controlledDispatcher.broadcast(type, message, targets::contains);
+    }
+
+    @Override
+    public int broadcast(LtMessage ltMessage, Predicate<ControlledSessionService.Session> filter) {
+        Set<Long> targets = controlledSessionService.getConnectionIDs(filter);
+        return targets.isEmpty() ? 0 : controlledDispatcher.broadcast(ltMessage, targets::contains);
+    }
 }
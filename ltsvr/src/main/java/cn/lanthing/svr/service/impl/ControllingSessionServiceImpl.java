@@ -36,7 +36,10 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 
 @Slf4j
 @Service
@@ -69,67 +72,92 @@ public class ControllingSessionServiceImpl implements ControllingSessionService
 
     private final Map<Long, Long> deviceIDToConnIDMap = new HashMap<>();
 
+    private final AutoReentrantLock lock = new AutoReentrantLock();
+
     @Override
     public void addSession(long connectionID) {
         var session = new SessionInner(connectionID);
         session.status = Status.Connected;
-        synchronized (this) {
+        try (var ignored = lock.acquire()) {
             connIDToSessionMap.putIfAbsent(connectionID, session);
         }
     }
 
     @Override
-    public synchronized Long removeSession(long connectionID) {
-        var session = connIDToSessionMap.remove(connectionID);
-        if (session != null) {
-            deviceIDToConnIDMap.remove(session.deviceID);
-            return session.deviceID;
-        } else {
-            return null;
+    public Long removeSession(long connectionID) {
+        try (var ignored = lock.acquire()) {
+            var session = connIDToSessionMap.remove(connectionID);
+            if (session != null) {
+                deviceIDToConnIDMap.remove(session.deviceID);
+                return session.deviceID;
+            } else {
+                return null;
+            }
         }
     }
 
     @Override
-    public synchronized boolean loginDevice(long connectionID, long deviceID, int version, String os) {
-
-        var session = connIDToSessionMap.get(connectionID);
-        if (session == null) {
-            log.error("LoginDevice failed, get session by connection id failed");
-            return false;
-        }
-        if (session.status != Status.Connected) {
-            //已有设备登录或已断开
-            log.error("LoginDevice failed, session.status != Connected");
-            return false;
+    public boolean loginDevice(long connectionID, long deviceID, int version, String os) {
+        try (var ignored = lock.acquire()) {
+            var session = connIDToSessionMap.get(connectionID);
+            if (session == null) {
+                log.error("LoginDevice failed, get session by connection id failed");
+                return false;
+            }
+            if (session.status != Status.Connected) {
+                //已有设备登录或已断开
+                log.error("LoginDevice failed, session.status != Connected");
+                return false;
+            }
+            session.deviceID = deviceID;
+            session.status = Status.DeviceLogged;
+            session.version = version;
+            session.os = os;
+            deviceIDToConnIDMap.put(deviceID, connectionID);
+            return true;
         }
-        session.deviceID = deviceID;
-        session.status = Status.DeviceLogged;
-        session.version = version;
-        session.os = os;
-        deviceIDToConnIDMap.put(deviceID, connectionID);
-        return true;
+    }
 
+    @Override
+    public Session getSessionByConnectionID(long connectionID) {
+        try (var ignored = lock.acquire()) {
+            var session = connIDToSessionMap.get(connectionID);
+            return session == null ? null : new Session(session.connectionID, session.deviceID, session.version, session.os);
+        }
     }
 
     @Override
-    public synchronized Session getSessionByConnectionID(long connectionID) {
-        var session = connIDToSessionMap.get(connectionID);
-        return session == null ? null : new Session(session.connectionID, session.deviceID, session.version, session.os);
+    public Set<Long> getConnectionIDs(Predicate<Session> filter) {
+        Set<Long> connectionIDs = new HashSet<>();
+        try (var ignored = lock.acquire()) {
+            for (var session : connIDToSessionMap.values()) {
+                if (filter.test(new Session(session.connectionID, session.deviceID, session.version, session.os))) {
+                    connectionIDs.add(session.connectionID);
+                }
+            }
+        }
+        return connectionIDs;
     }
 
     @Override
-    public synchronized Long getConnectionIDByDeviceID(long deviceID) {
-        return deviceIDToConnIDMap.get(deviceID);
+    public Long getConnectionIDByDeviceID(long deviceID) {
+        try (var ignored = lock.acquire()) {
+            return deviceIDToConnIDMap.get(deviceID);
+        }
     }
 
     @Override
-    public synchronized int getSessionCount() {
-        return connIDToSessionMap.size();
+    public int getSessionCount() {
+        try (var ignored = lock.acquire()) {
+            return connIDToSessionMap.size();
+        }
     }
 
     @Override
-    public synchronized void clearForTest() {
-        connIDToSessionMap.clear();
-        deviceIDToConnIDMap.clear();
+    public void clearForTest() {
+        try (var ignored = lock.acquire()) {
+            connIDToSessionMap.clear();
+            deviceIDToConnIDMap.clear();
+        }
     }
 }
@@ -33,18 +33,38 @@ package cn.lanthing.svr.service.impl;
 
 import cn.lanthing.codec.LtMessage;
 import cn.lanthing.ltsocket.MessageDispatcher;
+import cn.lanthing.svr.service.ControllingSessionService;
 import cn.lanthing.svr.service.ControllingSocketService;
+import com.google.protobuf.Message;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 
+import java.util.Set;
+import java.util.function.Predicate;
+
 @Service
 public class ControllingSocketServiceImpl implements ControllingSocketService {
     @Autowired
     @Lazy
     private MessageDispatcher controllingDispatcher;
+
+    @Autowired
+    private ControllingSessionService controllingSessionService;
     @Override
     public void send(long connectionID, LtMessage ltMessage) {
         controllingDispatcher.send(connectionID, ltMessage);
     }
+
+    @Override
+    public int broadcast(long type, Message message, Predicate<ControllingSessionService.Session> filter) {
+        Set<Long> targets = controllingSessionService.getConnectionIDs(filter);
+        return targets.isEmpty() ? 0 : controllingDispatcher.broadcast(type, message, targets::contains);
+    }
+
+    @Override
+    public int broadcast(LtMessage ltMessage, Predicate<ControllingSessionService.Session> filter) {
+        Set<Long> targets = controllingSessionService.getConnectionIDs(filter);
+        return targets.isEmpty() ? 0 : controllingDispatcher.broadcast(ltMessage, targets::contains);
+    }
 }
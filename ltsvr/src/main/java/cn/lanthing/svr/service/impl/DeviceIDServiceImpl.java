@@ -52,11 +52,13 @@ public class DeviceIDServiceImpl implements DeviceIDService {
     @Autowired
     private UsedIDDao usedIDDao;
 
+    private final AutoReentrantLock lock = new AutoReentrantLock();
+
     @Override
     public DeviceCookiePair allocateDeviceID() {
         long deviceID;
         String cookie = UUID.randomUUID().toString();
-        synchronized (this) {
+        try (var ignored = lock.acquire()) {
             UnusedID unnUsedID = unusedIDDao.getNextDeviceID();
             if (unnUsedID == null) {
                 log.error("Get next unused deviceID failed");
@@ -71,20 +73,26 @@ public class DeviceIDServiceImpl implements DeviceIDService {
     }
 
     @Override
-    public synchronized UsedID getUsedDeviceID(long deviceID) {
-        return usedIDDao.queryByDeviceID(deviceID);
+    public UsedID getUsedDeviceID(long deviceID) {
+        try (var ignored = lock.acquire()) {
+            return usedIDDao.queryByDeviceID(deviceID);
+        }
     }
 
     @Override
-    public synchronized void updateCookie(long deviceID, String cookie) {
-        usedIDDao.updateCookie(deviceID, cookie);
+    public void updateCookie(long deviceID, String cookie) {
+        try (var ignored = lock.acquire()) {
+            usedIDDao.updateCookie(deviceID, cookie);
+        }
     }
 
     @Override
-    public synchronized DeviceIDStat getDeviceIDStat() {
-        var usedCount = usedIDDao.countID();
-        var unUsedCount = unusedIDDao.countID();
-        return new DeviceIDStat(usedCount, unUsedCount);
+    public DeviceIDStat getDeviceIDStat() {
+        try (var ignored = lock.acquire()) {
+            var usedCount = usedIDDao.countID();
+            var unUsedCount = unusedIDDao.countID();
+            return new DeviceIDStat(usedCount, unUsedCount);
+        }
     }
 
 }
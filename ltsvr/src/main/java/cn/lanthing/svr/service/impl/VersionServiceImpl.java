@@ -31,8 +31,13 @@
 
 package cn.lanthing.svr.service.impl;
 
+import cn.lanthing.codec.FrameCache;
+import cn.lanthing.codec.LtMessage;
+import cn.lanthing.ltproto.LtProto;
+import cn.lanthing.ltproto.server.NewVersionProto;
 import cn.lanthing.svr.service.VersionService;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBufAllocator;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -55,6 +60,10 @@ public class VersionServiceImpl implements VersionService {
 
     private VersionFile versionFile;
 
+    // 最新版本对应的NewVersion消息，只在versions文件内容变化时重新编码。
+    // 自己持有一个引用，换成新的时release()，还没发完的旧消息由发送路径持有的引用保活
+    private LtMessage newestVersionMessage;
+
     public void reloadVersionsFile() {
         ObjectMapper om = new ObjectMapper();
         VersionFile newVersionFile;
@@ -72,9 +81,36 @@ public class VersionServiceImpl implements VersionService {
             log.error("Read version from {} success but 'versions' is empty", versionFileName);
             return;
         }
+        synchronized (flock) {
+            if (newVersionFile.equals(this.versionFile)) {
+                return;
+            }
+        }
+        LtMessage newMessage = encodeNewVersion(newVersionFile.versions().get(0));
+        LtMessage oldMessage;
         synchronized (flock) {
             this.versionFile = newVersionFile;
+            oldMessage = this.newestVersionMessage;
+            this.newestVersionMessage = newMessage;
+        }
+        if (oldMessage != null) {
+            oldMessage.release();
         }
+        log.info("Versions file {} changed", versionFileName);
+    }
+
+    private static LtMessage encodeNewVersion(Version version) {
+        var newVer = NewVersionProto.NewVersion.newBuilder().
+                setMajor(version.major())
+                .setMinor(version.minor())
+                .setPatch(version.patch())
+                .setForce(version.force())
+                .setTimestamp(version.timestamp())
+                .setUrl(version.url())
+                .addAllFeatures(version.features())
+                .addAllBugfix(version.bugfix());
+        // versions文件会变，不能用preEncode()的常驻内存
+        return FrameCache.encodeShared(ByteBufAllocator.DEFAULT, LtProto.NewVersion.ID, newVer.build());
     }
 
     @Override
@@ -83,6 +119,21 @@ public class VersionServiceImpl implements VersionService {
         synchronized (flock) {
             vf = this.versionFile;
         }
+        return newerVersion(vf, clientMajor, clientMinor, clientPatch);
+    }
+
+    @Override
+    public LtMessage getNewVersionMessagePC(int clientMajor, int clientMinor, int clientPatch) {
+        // retain()必须在锁里做，否则可能和reloadVersionsFile()里的release()交错
+        synchronized (flock) {
+            if (newerVersion(this.versionFile, clientMajor, clientMinor, clientPatch) == null) {
+                return null;
+            }
+            return this.newestVersionMessage.retain();
+        }
+    }
+
+    private static Version newerVersion(VersionFile vf, int clientMajor, int clientMinor, int clientPatch) {
         if (vf == null || CollectionUtils.isEmpty(vf.versions())) {
             return null;
         }
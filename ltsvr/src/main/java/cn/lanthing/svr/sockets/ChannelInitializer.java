@@ -53,7 +53,7 @@ public class ChannelInitializer {
 
     @Bean
     public NonSslChannelInitializer controllingNonSslChannelInitializer() throws Exception {
-        return new NonSslChannelInitializer(controllingDispatcher);
+        return new NonSslChannelInitializer(controllingSocketConfig, controllingDispatcher);
     }
 
     @Bean
@@ -66,7 +66,7 @@ public class ChannelInitializer {
 
     @Bean
     public NonSslChannelInitializer controlledNonSslChannelInitializer() throws Exception {
-        return new NonSslChannelInitializer(controlledDispatcher);
+        return new NonSslChannelInitializer(controlledSocketConfig, controlledDispatcher);
     }
 
     @Bean
@@ -32,6 +32,7 @@
 package cn.lanthing.svr.sockets;
 
 import cn.lanthing.ltsocket.MessageDispatcher;
+import cn.lanthing.ltsocket.SocketConfig;
 import cn.lanthing.svr.controller.ControlledController;
 import cn.lanthing.svr.controller.ControllingController;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -45,13 +46,19 @@ public class Dispatcher {
     @Autowired
     private ApplicationContext applicationContext;
 
+    @Autowired
+    private SocketConfig controllingSocketConfig;
+
+    @Autowired
+    private SocketConfig controlledSocketConfig;
+
     @Bean
     public MessageDispatcher controllingDispatcher() throws Exception {
-        return new MessageDispatcher(ControllingController.class, applicationContext);
+        return new MessageDispatcher(ControllingController.class, applicationContext, controllingSocketConfig);
     }
 
     @Bean
     public MessageDispatcher controlledDispatcher() throws Exception {
-        return new MessageDispatcher(ControlledController.class, applicationContext);
+        return new MessageDispatcher(ControlledController.class, applicationContext, controlledSocketConfig);
     }
 }
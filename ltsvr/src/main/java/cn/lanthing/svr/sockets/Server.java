@@ -31,6 +31,8 @@
 
 package cn.lanthing.svr.sockets;
 
+import cn.lanthing.ltsocket.EventLoopConfig;
+import cn.lanthing.ltsocket.EventLoops;
 import cn.lanthing.ltsocket.NonSslChannelInitializer;
 import cn.lanthing.ltsocket.SocketConfig;
 import cn.lanthing.ltsocket.SocketServer;
@@ -42,6 +44,9 @@ import org.springframework.stereotype.Component;
 
 @Component
 public class Server {
+    @Autowired
+    private EventLoopConfig eventLoopConfig;
+
     @Autowired
     private SocketConfig controlledSocketConfig;
 
@@ -60,14 +65,18 @@ public class Server {
     @Autowired(required = false)
     private SslChannelInitializer controlledSslChannelInitializer;
 
+    // 两个端口共用的事件循环，event-loops.shared为false时为null
+    private EventLoops eventLoops;
+
     private SocketServer controlledSocketServer;
 
     private SocketServer controllingSocketServer;
 
     @PostConstruct
     public void init() throws Exception {
-        controlledSocketServer = new SocketServer(controlledSocketConfig, controlledNonSslChannelInitializer, controlledSslChannelInitializer);
-        controllingSocketServer = new SocketServer(controllingSocketConfig, controllingNonSslChannelInitializer, controllingSslChannelInitializer);
+        eventLoops = EventLoops.fromConfig("shared", eventLoopConfig);
+        controlledSocketServer = new SocketServer(controlledSocketConfig, controlledNonSslChannelInitializer, controlledSslChannelInitializer, eventLoops);
+        controllingSocketServer = new SocketServer(controllingSocketConfig, controllingNonSslChannelInitializer, controllingSslChannelInitializer, eventLoops);
     }
 
     @PreDestroy
@@ -78,6 +87,9 @@ public class Server {
         if (controllingSocketServer != null) {
             controllingSocketServer.stop();
         }
+        if (eventLoops != null) {
+            eventLoops.stop();
+        }
     }
 
 }
@@ -0,0 +1,90 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2023 Zhennan Tu <zhennan.tu@gmail.com>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cn.lanthing.svr.controller;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+public class ManagerControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ManagerController managerController;
+
+    @Test
+    public void rejectBroadcastWithoutToken() throws Exception {
+        mockMvc.perform(post("/mgr/broadcast/redirect").param("host", "evil.example.com").param("port", "443"))
+                .andExpect(status().isForbidden());
+        mockMvc.perform(post("/mgr/broadcast/new-version"))
+                .andExpect(status().isForbidden());
+    }
+
+    @Test
+    public void rejectBroadcastWithWrongToken() throws Exception {
+        mockMvc.perform(post("/mgr/broadcast/redirect").param("host", "evil.example.com").param("port", "443")
+                        .header(ManagerController.kBroadcastTokenHeader, "wrong-token"))
+                .andExpect(status().isForbidden());
+    }
+
+    @Test
+    public void rejectBroadcastWhenTokenNotConfigured() throws Exception {
+        Object configured = ReflectionTestUtils.getField(managerController, "broadcastToken");
+        ReflectionTestUtils.setField(managerController, "broadcastToken", "");
+        try {
+            mockMvc.perform(post("/mgr/broadcast/redirect").param("host", "evil.example.com").param("port", "443")
+                            .header(ManagerController.kBroadcastTokenHeader, ""))
+                    .andExpect(status().isForbidden());
+        } finally {
+            ReflectionTestUtils.setField(managerController, "broadcastToken", configured);
+        }
+    }
+
+    @Test
+    public void acceptBroadcastWithToken() throws Exception {
+        mockMvc.perform(post("/mgr/broadcast/redirect").param("host", "127.0.0.1").param("port", "9876")
+                        .header(ManagerController.kBroadcastTokenHeader, "test-token"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.code").value(0));
+    }
+}
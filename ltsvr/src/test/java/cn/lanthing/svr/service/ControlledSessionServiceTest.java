@@ -37,6 +37,8 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import java.util.Set;
+
 @SpringBootTest
 public class ControlledSessionServiceTest {
 
@@ -143,4 +145,19 @@ public class ControlledSessionServiceTest {
         Assertions.assertEquals(2, count4);
     }
 
+    @Test
+    public void getConnectionIDs() {
+        Assertions.assertTrue(controlledSessionService.getConnectionIDs(session -> true).isEmpty());
+        controlledSessionService.addSession(1);
+        controlledSessionService.addSession(2);
+        controlledSessionService.addSession(3);
+        controlledSessionService.loginDevice(1, 111, true, 1_002_003, "Windows");
+        controlledSessionService.loginDevice(2, 222, true, 1_003_000, "Linux");
+        Assertions.assertEquals(Set.of(1L, 2L, 3L), controlledSessionService.getConnectionIDs(session -> true));
+        Assertions.assertEquals(Set.of(1L, 2L), controlledSessionService.getConnectionIDs(session -> session.deviceID() != 0));
+        Assertions.assertEquals(Set.of(1L), controlledSessionService.getConnectionIDs(session -> session.version() < 1_003_000 && session.deviceID() != 0));
+        controlledSessionService.removeSession(1);
+        Assertions.assertEquals(Set.of(2L), controlledSessionService.getConnectionIDs(session -> session.deviceID() != 0));
+    }
+
 }
@@ -37,6 +37,8 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import java.util.Set;
+
 @SpringBootTest
 public class ControllingSessionServiceTest {
 
@@ -140,4 +142,19 @@ public class ControllingSessionServiceTest {
         int count4 = controllingSessionService.getSessionCount();
         Assertions.assertEquals(2, count4);
     }
+
+    @Test
+    public void getConnectionIDs() {
+        Assertions.assertTrue(controllingSessionService.getConnectionIDs(session -> true).isEmpty());
+        controllingSessionService.addSession(1);
+        controllingSessionService.addSession(2);
+        controllingSessionService.addSession(3);
+        controllingSessionService.loginDevice(1, 111, 1_002_003, "Windows");
+        controllingSessionService.loginDevice(2, 222, 1_003_000, "Linux");
+        Assertions.assertEquals(Set.of(1L, 2L, 3L), controllingSessionService.getConnectionIDs(session -> true));
+        Assertions.assertEquals(Set.of(2L), controllingSessionService.getConnectionIDs(session -> "Linux".equals(session.os())));
+        Assertions.assertEquals(Set.of(1L), controllingSessionService.getConnectionIDs(session -> session.version() < 1_003_000 && session.deviceID() != 0));
+        controllingSessionService.removeSession(1);
+        Assertions.assertEquals(Set.of(2L), controllingSessionService.getConnectionIDs(session -> session.deviceID() != 0));
+    }
 }